@@ -128,6 +128,8 @@ public interface CordovaWebView {
 
     void sendPluginResult(PluginResult cr, String callbackId);
 
+    NativeToJsMessageQueue getNativeToJsMessageQueue();
+
     PluginManager getPluginManager();
     CordovaWebViewEngine getEngine();
     CordovaPreferences getPreferences();
@@ -104,6 +104,9 @@ public class CordovaWebViewImpl implements CordovaWebView {
         nativeToJsMessageQueue = new NativeToJsMessageQueue();
         nativeToJsMessageQueue.addBridgeMode(new NativeToJsMessageQueue.NoOpBridgeMode());
         nativeToJsMessageQueue.addBridgeMode(new NativeToJsMessageQueue.LoadUrlBridgeMode(engine, cordova));
+        nativeToJsMessageQueue.setCapacity(
+                preferences.getInteger("NativeToJsMaxMessages", NativeToJsMessageQueue.DEFAULT_MAX_MESSAGES),
+                preferences.getInteger("NativeToJsMaxBytes", NativeToJsMessageQueue.DEFAULT_MAX_BYTES));
 
         if (preferences.getBoolean("DisallowOverscroll", false)) {
             engine.getView().setOverScrollMode(View.OVER_SCROLL_NEVER);
@@ -307,6 +310,11 @@ public class CordovaWebViewImpl implements CordovaWebView {
         nativeToJsMessageQueue.addPluginResult(cr, callbackId);
     }
 
+    @Override
+    public NativeToJsMessageQueue getNativeToJsMessageQueue() {
+        return nativeToJsMessageQueue;
+    }
+
     @Override
     public PluginManager getPluginManager() {
         return pluginManager;
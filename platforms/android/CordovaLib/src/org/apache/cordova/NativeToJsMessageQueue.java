@@ -19,8 +19,16 @@
 package org.apache.cordova;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -42,6 +50,28 @@ public class NativeToJsMessageQueue {
     // This currently only chops up on message boundaries. It may be useful
     // to allow it to break up messages.
     private static int MAX_PAYLOAD_SIZE = 50 * 1024 * 10240;
+
+    // Default rate at which the results of coalesced callbacks are flushed.
+    public static final int DEFAULT_TARGET_FRAME_RATE = 60;
+
+    // Default limits of the queue, see setCapacity(). The size is the encoded length.
+    public static final int DEFAULT_MAX_MESSAGES = 1000;
+    public static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * What happens to a keepCallback result which does not fit into the queue.
+     */
+    public enum OverflowPolicy {
+        // Drops the oldest queued results of the same plugin.
+        DROP_OLDEST,
+        // Drops the new result.
+        DROP_NEWEST,
+        // Waits for room until the timeout, then drops the new result.
+        // Results sent from the UI thread are dropped right away.
+        BLOCK
+    }
+
+    private static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
     
     /**
      * When true, the active listener is not fired upon enqueue. When set to false,
@@ -52,7 +82,11 @@ public class NativeToJsMessageQueue {
     /**
      * The list of JavaScript statements to be sent to JavaScript.
      */
-    private final LinkedList<JsMessage> queue = new LinkedList<JsMessage>();
+    private final MessageRing queue = new MessageRing();
+
+    // The encoders reuse one buffer, a buffer grown beyond this is released after use.
+    private static final int MAX_RETAINED_ENCODE_BUFFER = 64 * 1024;
+    private final StringBuilder encodeBuffer = new StringBuilder();
 
     /**
      * The array of listeners that can be used to send messages to JS.
@@ -66,6 +100,70 @@ public class NativeToJsMessageQueue {
      */
     private BridgeMode activeBridgeMode;
 
+    /**
+     * The callbackIds whose keepCallback results replace their pending
+     * predecessor instead of being appended. See setCoalescing().
+     */
+    private final HashSet<String> coalescedCallbackIds = new HashSet<String>();
+
+    /**
+     * The queued keepCallback message of each coalesced callbackId.
+     */
+    private final HashMap<String, JsMessage> pendingCoalesced = new HashMap<String, JsMessage>();
+
+    /**
+     * Coalesced results do not fire the bridge more often than once per frame.
+     */
+    private long frameIntervalMs = 1000 / DEFAULT_TARGET_FRAME_RATE;
+    private long lastFlushAt;
+    private boolean flushPosted;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private int maxMessages = DEFAULT_MAX_MESSAGES;
+    private int maxBytes = DEFAULT_MAX_BYTES;
+    private long queuedBytes;
+
+    private static class ServicePolicy {
+        final OverflowPolicy overflowPolicy;
+        final long blockTimeoutMs;
+
+        ServicePolicy(OverflowPolicy overflowPolicy, long blockTimeoutMs) {
+            this.overflowPolicy = overflowPolicy;
+            this.blockTimeoutMs = blockTimeoutMs;
+        }
+    }
+
+    /**
+     * The overflow policies by service name, plugins without one use DEFAULT_OVERFLOW_POLICY.
+     */
+    private final HashMap<String, ServicePolicy> overflowPolicies = new HashMap<String, ServicePolicy>();
+
+    private int peakMessages;
+    private long peakBytes;
+    private long enqueuedCount;
+    private long coalescedCount;
+    private long droppedOldestCount;
+    private long droppedNewestCount;
+    private long blockedCount;
+    private long blockTimeoutCount;
+    private long blockedMs;
+    private long deferredFlushCount;
+    private long flushCount;
+    private long encodedMessageCount;
+    private long encodedChars;
+    private long encodeNanos;
+
+    private final Runnable delayedFlush = new Runnable() {
+        public void run() {
+            synchronized (NativeToJsMessageQueue.this) {
+                flushPosted = false;
+                if (!paused && activeBridgeMode != null && !queue.isEmpty()) {
+                    activeBridgeMode.onNativeToJsMessageAvailable(NativeToJsMessageQueue.this);
+                }
+            }
+        }
+    };
+
     public void addBridgeMode(BridgeMode bridgeMode) {
         bridgeModes.add(bridgeMode);
     }
@@ -107,14 +205,48 @@ public class NativeToJsMessageQueue {
     public void reset() {
         synchronized (this) {
             queue.clear();
+            queuedBytes = 0;
+            // The callbacks belong to the previous page.
+            pendingCoalesced.clear();
+            coalescedCallbackIds.clear();
             setBridgeMode(-1);
+            notifyAll();
         }
     }
 
     private int calculatePackedMessageLength(JsMessage message) {
         int messageLen = message.calculateEncodedLength();
-        String messageLenStr = String.valueOf(messageLen);
-        return messageLenStr.length() + messageLen + 1;        
+        return countDigits(messageLen) + messageLen + 1;
+    }
+
+    /**
+     * The length of String.valueOf(value) for a value >= 0, without building the string.
+     */
+    static int countDigits(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private StringBuilder obtainEncodeBuffer(int capacity) {
+        encodeBuffer.setLength(0);
+        encodeBuffer.ensureCapacity(capacity);
+        return encodeBuffer;
+    }
+
+    private String releaseEncodeBuffer(int numMessages, long startedAt) {
+        String ret = encodeBuffer.toString();
+        if (encodeBuffer.capacity() > MAX_RETAINED_ENCODE_BUFFER) {
+            encodeBuffer.setLength(0);
+            encodeBuffer.trimToSize();
+        }
+        encodedMessageCount += numMessages;
+        encodedChars += ret.length();
+        encodeNanos += System.nanoTime() - startedAt;
+        return ret;
     }
     
     private void packMessage(JsMessage message, StringBuilder sb) {
@@ -138,10 +270,11 @@ public class NativeToJsMessageQueue {
             if (queue.isEmpty()) {
                 return null;
             }
+            long startedAt = System.nanoTime();
             int totalPayloadLen = 0;
             int numMessagesToSend = 0;
-            for (JsMessage message : queue) {
-                int messageSize = calculatePackedMessageLength(message);
+            for (int i = 0; i < queue.size(); ++i) {
+                int messageSize = calculatePackedMessageLength(queue.get(i));
                 if (numMessagesToSend > 0 && totalPayloadLen + messageSize > MAX_PAYLOAD_SIZE && MAX_PAYLOAD_SIZE > 0) {
                     break;
                 }
@@ -149,18 +282,19 @@ public class NativeToJsMessageQueue {
                 numMessagesToSend += 1;
             }
 
-            StringBuilder sb = new StringBuilder(totalPayloadLen);
+            StringBuilder sb = obtainEncodeBuffer(totalPayloadLen + 1);
             for (int i = 0; i < numMessagesToSend; ++i) {
                 JsMessage message = queue.removeFirst();
+                onMessageRemoved(message);
                 packMessage(message, sb);
             }
+            onFlush();
             
             if (!queue.isEmpty()) {
                 // Attach a char to indicate that there are more messages pending.
                 sb.append('*');
             }
-            String ret = sb.toString();
-            return ret;
+            return releaseEncodeBuffer(numMessagesToSend, startedAt);
         }
     }
     
@@ -173,10 +307,11 @@ public class NativeToJsMessageQueue {
             if (length == 0) {
                 return null;
             }
+            long startedAt = System.nanoTime();
             int totalPayloadLen = 0;
             int numMessagesToSend = 0;
-            for (JsMessage message : queue) {
-                int messageSize = message.calculateEncodedLength() + 50; // overestimate.
+            for (int i = 0; i < length; ++i) {
+                int messageSize = queue.get(i).calculateEncodedLength() + 50; // overestimate.
                 if (numMessagesToSend > 0 && totalPayloadLen + messageSize > MAX_PAYLOAD_SIZE && MAX_PAYLOAD_SIZE > 0) {
                     break;
                 }
@@ -184,11 +319,12 @@ public class NativeToJsMessageQueue {
                 numMessagesToSend += 1;
             }
             boolean willSendAllMessages = numMessagesToSend == queue.size();
-            StringBuilder sb = new StringBuilder(totalPayloadLen + (willSendAllMessages ? 0 : 100));
+            StringBuilder sb = obtainEncodeBuffer(totalPayloadLen + (willSendAllMessages ? 0 : 100));
             // Wrap each statement in a try/finally so that if one throws it does 
             // not affect the next.
             for (int i = 0; i < numMessagesToSend; ++i) {
                 JsMessage message = queue.removeFirst();
+                onMessageRemoved(message);
                 if (willSendAllMessages && (i + 1 == numMessagesToSend)) {
                     message.encodeAsJsMessage(sb);
                 } else {
@@ -203,8 +339,8 @@ public class NativeToJsMessageQueue {
             for (int i = willSendAllMessages ? 1 : 0; i < numMessagesToSend; ++i) {
                 sb.append('}');
             }
-            String ret = sb.toString();
-            return ret;
+            onFlush();
+            return releaseEncodeBuffer(numMessagesToSend, startedAt);
         }
     }   
 
@@ -246,13 +382,246 @@ public class NativeToJsMessageQueue {
                 Log.d(LOG_TAG, "Dropping Native->JS message due to disabled bridge");
                 return;
             }
+            enqueuedCount++;
+            boolean coalesce = false;
+            if (message.pluginResult != null && coalescedCallbackIds.contains(message.jsPayloadOrCallbackId)) {
+                if (message.pluginResult.getKeepCallback()) {
+                    if (replaceCoalesced(message)) {
+                        return;
+                    }
+                    coalesce = true;
+                } else {
+                    // The final result of the callback, it must not be replaced.
+                    pendingCoalesced.remove(message.jsPayloadOrCallbackId);
+                    coalescedCallbackIds.remove(message.jsPayloadOrCallbackId);
+                }
+            }
+
+            int length = message.calculateEncodedLength();
+            if (!makeRoom(message, length)) {
+                return;
+            }
             queue.add(message);
-            if (!paused) {
+            queuedBytes += length;
+            peakMessages = Math.max(peakMessages, queue.size());
+            peakBytes = Math.max(peakBytes, queuedBytes);
+            if (coalesce) {
+                pendingCoalesced.put(message.jsPayloadOrCallbackId, message);
+            }
+            if (paused) {
+                return;
+            }
+            if (coalesce) {
+                fireRateLimited();
+            } else {
                 activeBridgeMode.onNativeToJsMessageAvailable(this);
             }
         }
     }
 
+    /**
+     * Replaces the pending result of the callback if it has the same status.
+     * Returns false if there is none.
+     */
+    private boolean replaceCoalesced(JsMessage message) {
+        JsMessage pending = pendingCoalesced.get(message.jsPayloadOrCallbackId);
+        if (pending == null || pending.pluginResult.getStatus() != message.pluginResult.getStatus()) {
+            return false;
+        }
+        int index = queue.lastIndexOf(pending);
+        if (index < 0) {
+            return false;
+        }
+        // The bridge has been fired for the pending message already.
+        queue.set(index, message);
+        queuedBytes += message.calculateEncodedLength() - pending.calculateEncodedLength();
+        pendingCoalesced.put(message.jsPayloadOrCallbackId, message);
+        coalescedCount++;
+        return true;
+    }
+
+    /**
+     * Fires the bridge at most once per frame.
+     */
+    private void fireRateLimited() {
+        long wait = lastFlushAt + frameIntervalMs - SystemClock.uptimeMillis();
+        if (wait <= 0) {
+            activeBridgeMode.onNativeToJsMessageAvailable(this);
+        } else if (!flushPosted) {
+            flushPosted = true;
+            deferredFlushCount++;
+            handler.postDelayed(delayedFlush, wait);
+        }
+    }
+
+    private boolean hasRoom(int length) {
+        return queue.isEmpty() || (queue.size() < maxMessages && queuedBytes + length <= maxBytes);
+    }
+
+    /**
+     * Applies the overflow policy of the plugin when the message does not fit.
+     * Final results and JS statements are always queued, as dropping them would
+     * leave their callers waiting forever. Returns false if the message is dropped.
+     */
+    private boolean makeRoom(JsMessage message, int length) {
+        if (hasRoom(length) || message.pluginResult == null || !message.pluginResult.getKeepCallback()) {
+            return true;
+        }
+        String service = getService(message.jsPayloadOrCallbackId);
+        ServicePolicy policy = overflowPolicies.get(service);
+        OverflowPolicy overflowPolicy = policy != null ? policy.overflowPolicy : DEFAULT_OVERFLOW_POLICY;
+
+        if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            // Only results of the same plugin make room.
+            int i = 0;
+            while (!hasRoom(length) && i < queue.size()) {
+                JsMessage queued = queue.get(i);
+                if (queued.pluginResult != null && queued.pluginResult.getKeepCallback()
+                        && service.equals(getService(queued.jsPayloadOrCallbackId))) {
+                    queue.remove(i);
+                    onMessageRemoved(queued);
+                    droppedOldestCount++;
+                } else {
+                    i++;
+                }
+            }
+        } else if (overflowPolicy == OverflowPolicy.BLOCK) {
+            // The UI thread drains the queue, it must never wait for it.
+            if (Looper.myLooper() != Looper.getMainLooper()) {
+                blockedCount++;
+                long start = SystemClock.uptimeMillis();
+                long deadline = start + policy.blockTimeoutMs;
+                long wait;
+                while (!hasRoom(length) && activeBridgeMode != null && (wait = deadline - SystemClock.uptimeMillis()) > 0) {
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                blockedMs += SystemClock.uptimeMillis() - start;
+                if (!hasRoom(length)) {
+                    blockTimeoutCount++;
+                }
+            }
+        }
+
+        if (activeBridgeMode != null && hasRoom(length)) {
+            return true;
+        }
+        droppedNewestCount++;
+        if (droppedNewestCount == 1) {
+            Log.w(LOG_TAG, "Native->JS queue is full, dropping results of " + service);
+        }
+        return false;
+    }
+
+    private void onMessageRemoved(JsMessage message) {
+        queuedBytes -= message.calculateEncodedLength();
+        if (message.pluginResult != null && pendingCoalesced.get(message.jsPayloadOrCallbackId) == message) {
+            pendingCoalesced.remove(message.jsPayloadOrCallbackId);
+        }
+    }
+
+    private void onFlush() {
+        lastFlushAt = SystemClock.uptimeMillis();
+        flushCount++;
+        // Wake up blocked producers.
+        notifyAll();
+    }
+
+    /**
+     * callbackIds are made of the service name and a counter, see cordova.exec().
+     */
+    private static String getService(String callbackId) {
+        int end = callbackId.length();
+        while (end > 0 && Character.isDigit(callbackId.charAt(end - 1))) {
+            end--;
+        }
+        return callbackId.substring(0, end);
+    }
+
+    /**
+     * Opts the callback in or out of coalescing. While opted in, a keepCallback
+     * result which is still queued is replaced by a newer one with the same status,
+     * so only the latest value reaches JS. The callback is opted out by its final result.
+     */
+    public void setCoalescing(String callbackId, boolean coalesce) {
+        synchronized (this) {
+            if (coalesce) {
+                coalescedCallbackIds.add(callbackId);
+            } else {
+                coalescedCallbackIds.remove(callbackId);
+                pendingCoalesced.remove(callbackId);
+            }
+        }
+    }
+
+    /**
+     * Sets the highest rate at which the bridge is fired for coalesced results.
+     * A value <= 0 fires it for every result.
+     */
+    public void setTargetFrameRate(int framesPerSecond) {
+        synchronized (this) {
+            frameIntervalMs = framesPerSecond > 0 ? 1000 / framesPerSecond : 0;
+        }
+    }
+
+    /**
+     * Limits the number and the encoded size of the queued messages. The
+     * overflow policy of a plugin decides what happens to its keepCallback
+     * results once a limit is reached.
+     */
+    public void setCapacity(int maxMessages, int maxBytes) {
+        synchronized (this) {
+            this.maxMessages = maxMessages > 0 ? maxMessages : DEFAULT_MAX_MESSAGES;
+            this.maxBytes = maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES;
+        }
+    }
+
+    /**
+     * Sets the overflow policy of the plugin with the given service name.
+     * blockTimeoutMs is how long a producer waits for room with BLOCK.
+     */
+    public void setOverflowPolicy(String service, OverflowPolicy overflowPolicy, long blockTimeoutMs) {
+        synchronized (this) {
+            overflowPolicies.put(service, new ServicePolicy(overflowPolicy, blockTimeoutMs));
+        }
+    }
+
+    /**
+     * Depth, size and the counters of the queue.
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        synchronized (this) {
+            try {
+                stats.put("messages", queue.size());
+                stats.put("bytes", queuedBytes);
+                stats.put("maxMessages", maxMessages);
+                stats.put("maxBytes", maxBytes);
+                stats.put("peakMessages", peakMessages);
+                stats.put("peakBytes", peakBytes);
+                stats.put("enqueued", enqueuedCount);
+                stats.put("coalesced", coalescedCount);
+                stats.put("droppedOldest", droppedOldestCount);
+                stats.put("droppedNewest", droppedNewestCount);
+                stats.put("blocked", blockedCount);
+                stats.put("blockTimeouts", blockTimeoutCount);
+                stats.put("blockedMs", blockedMs);
+                stats.put("deferredFlushes", deferredFlushCount);
+                stats.put("flushes", flushCount);
+                stats.put("encodedMessages", encodedMessageCount);
+                stats.put("encodedChars", encodedChars);
+                stats.put("encodeMicros", encodeNanos / 1000);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, "Could not encode the queue stats", e);
+            }
+        }
+        return stats;
+    }
+
     public void setPaused(boolean value) {
         if (paused && value) {
             // This should never happen. If a use-case for it comes up, we should
@@ -351,6 +720,80 @@ public class NativeToJsMessageQueue {
         }
     }
 
+    /**
+     * Array backed FIFO of the queued messages. The capacity is a power of two
+     * and doubles when full, the slots are reused once the queue is drained.
+     */
+    private static class MessageRing {
+        private JsMessage[] messages = new JsMessage[16];
+        private int head;
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        JsMessage get(int index) {
+            return messages[(head + index) & (messages.length - 1)];
+        }
+
+        void set(int index, JsMessage message) {
+            messages[(head + index) & (messages.length - 1)] = message;
+        }
+
+        void add(JsMessage message) {
+            if (size == messages.length) {
+                JsMessage[] grown = new JsMessage[messages.length * 2];
+                for (int i = 0; i < size; ++i) {
+                    grown[i] = get(i);
+                }
+                messages = grown;
+                head = 0;
+            }
+            set(size++, message);
+        }
+
+        JsMessage removeFirst() {
+            JsMessage message = messages[head];
+            messages[head] = null;
+            head = (head + 1) & (messages.length - 1);
+            size--;
+            return message;
+        }
+
+        /**
+         * Removes the message at index, the following messages move up.
+         */
+        void remove(int index) {
+            for (int i = index; i < size - 1; ++i) {
+                set(i, get(i + 1));
+            }
+            set(--size, null);
+        }
+
+        /**
+         * Compares by identity, the newest messages are checked first.
+         */
+        int lastIndexOf(JsMessage message) {
+            for (int i = size - 1; i >= 0; --i) {
+                if (get(i) == message) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void clear() {
+            Arrays.fill(messages, null);
+            head = 0;
+            size = 0;
+        }
+    }
+
     private static class JsMessage {
         final String jsPayloadOrCallbackId;
         final PluginResult pluginResult;
@@ -386,7 +829,7 @@ public class NativeToJsMessageQueue {
                     int ret = 1;
                     for (int i = 0; i < pluginResult.getMultipartMessagesSize(); i++) {
                         int length = calculateEncodedLengthHelper(pluginResult.getMultipartMessage(i));
-                        int argLength = String.valueOf(length).length();
+                        int argLength = countDigits(length);
                         ret += argLength + 1 + length;
                     }
                     return ret;
@@ -396,14 +839,21 @@ public class NativeToJsMessageQueue {
             }
         }
         
+        // Computed once, it is needed for the capacity, the payload limit and the packing.
+        private int encodedLength = -1;
+
         int calculateEncodedLength() {
-            if (pluginResult == null) {
-                return jsPayloadOrCallbackId.length() + 1;
-            }
-            int statusLen = String.valueOf(pluginResult.getStatus()).length();
-            int ret = 2 + statusLen + 1 + jsPayloadOrCallbackId.length() + 1;
-            return ret + calculateEncodedLengthHelper(pluginResult);
+            if (encodedLength < 0) {
+                if (pluginResult == null) {
+                    encodedLength = jsPayloadOrCallbackId.length() + 1;
+                } else {
+                    int statusLen = countDigits(pluginResult.getStatus());
+                    int ret = 2 + statusLen + 1 + jsPayloadOrCallbackId.length() + 1;
+                    encodedLength = ret + calculateEncodedLengthHelper(pluginResult);
+                }
             }
+            return encodedLength;
+        }
 
         static void encodeAsMessageHelper(StringBuilder sb, PluginResult pluginResult) {
             switch (pluginResult.getMessageType()) {
@@ -433,7 +883,7 @@ public class NativeToJsMessageQueue {
                     sb.append('M');
                     for (int i = 0; i < pluginResult.getMultipartMessagesSize(); i++) {
                         PluginResult multipartMessage = pluginResult.getMultipartMessage(i);
-                        sb.append(String.valueOf(calculateEncodedLengthHelper(multipartMessage)));
+                        sb.append(calculateEncodedLengthHelper(multipartMessage));
                         sb.append(' ');
                         encodeAsMessageHelper(sb, multipartMessage);
                     }
@@ -0,0 +1,178 @@
+package de.max.miband;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import de.max.miband.bluetooth.BLEAction;
+import de.max.miband.bluetooth.BLETask;
+import de.max.miband.bluetooth.QueueConsumer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The steps run after a connection, declared as phases. The actions of a phase are queued together
+ * as one {@link BLETask}, so they go back-to-back. The next phase is only built once every step of the
+ * previous one has its result, e.g. the {@link DeviceInfo} which the user info is encoded with.
+ * The time from the start of the connection to the result of each step is recorded in the {@link HandshakeStats}.
+ * A handshake runs once.
+ */
+public class Handshake {
+
+    private static final String TAG = Handshake.class.getSimpleName();
+
+    public static final String STAGE_READY = "ready";
+
+    public interface Listener {
+        public void onReady(long elapsedMs);
+
+        public void onFail(String step, int errorCode, String msg);
+    }
+
+    /**
+     * A step of the handshake, its action is created when its phase starts
+     */
+    public static abstract class Step {
+        private final String name;
+
+        protected Step(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * An optional step is best-effort: if it fails, the failure is recorded and the handshake goes on,
+         * unless the connection is lost
+         */
+        protected boolean isOptional() {
+            return false;
+        }
+
+        /**
+         * Creates the action of the step, the callback has to be passed to the action
+         */
+        protected abstract BLEAction createAction(ActionCallback callback);
+
+        /**
+         * Called with the result of the action, before the next phase is built
+         */
+        protected void onResult(Object data) {
+        }
+    }
+
+    private final List<Step[]> phases = new ArrayList<>();
+    private final HandshakeStats stats;
+    private final BLETask.Lane lane;
+
+    private QueueConsumer queueConsumer;
+    private Listener listener;
+    private long startedAt;
+    //guarded by this
+    private int pendingSteps;
+    private boolean failed;
+
+    public Handshake(HandshakeStats stats, BLETask.Lane lane) {
+        this.stats = stats;
+        this.lane = lane;
+    }
+
+    /**
+     * Adds a phase, its steps are queued together after the previous phase is done
+     */
+    public Handshake then(Step... steps) {
+        phases.add(steps);
+        return this;
+    }
+
+    /**
+     * @param startedAt the {@link SystemClock#elapsedRealtime()} the connection was started at
+     */
+    public void start(QueueConsumer queueConsumer, long startedAt, Listener listener) {
+        this.queueConsumer = queueConsumer;
+        this.startedAt = startedAt;
+        this.listener = listener;
+        runPhase(0);
+    }
+
+    private void runPhase(final int index) {
+        if (index == phases.size()) {
+            long elapsed = SystemClock.elapsedRealtime() - startedAt;
+            stats.record(STAGE_READY, elapsed);
+            Log.d(TAG, "ready after " + elapsed + " ms");
+            listener.onReady(elapsed);
+            return;
+        }
+
+        Step[] steps = phases.get(index);
+        List<BLEAction> actions = new ArrayList<>(steps.length);
+        synchronized (this) {
+            pendingSteps = steps.length;
+        }
+        try {
+            for (final Step step : steps) {
+                actions.add(step.createAction(new ActionCallback() {
+                    @Override
+                    public void onSuccess(Object data) {
+                        onStepDone(index, step, data);
+                    }
+
+                    @Override
+                    public void onFail(int errorCode, String msg) {
+                        //a lost connection fails the handshake whatever the step
+                        if (step.isOptional() && errorCode != QueueConsumer.ERROR_DISCONNECTED) {
+                            Log.w(TAG, "optional step " + step.getName() + " failed: " + msg);
+                            stats.failed(step.getName());
+                            onPhaseStepDone(index);
+                        } else {
+                            fail(step, errorCode, msg);
+                        }
+                    }
+                }));
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "could not create the actions of phase " + index, e);
+            fail(steps[actions.size()], -1, e.toString());
+            return;
+        }
+        queueConsumer.add(new BLETask(actions, lane));
+    }
+
+    private void onStepDone(int index, Step step, Object data) {
+        stats.record(step.getName(), SystemClock.elapsedRealtime() - startedAt);
+        try {
+            step.onResult(data);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "unexpected result of " + step.getName(), e);
+            fail(step, -1, e.toString());
+            return;
+        }
+        onPhaseStepDone(index);
+    }
+
+    private void onPhaseStepDone(int index) {
+        boolean phaseDone;
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+            phaseDone = --pendingSteps == 0;
+        }
+        if (phaseDone) {
+            runPhase(index + 1);
+        }
+    }
+
+    private void fail(Step step, int errorCode, String msg) {
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+            failed = true;
+        }
+        stats.failed(step.getName());
+        listener.onFail(step.getName(), errorCode, msg);
+    }
+}
@@ -0,0 +1,73 @@
+package de.max.miband;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Connect-to-ready latency of the {@link Handshake} stages: the time from the start of the
+ * connection to the result of each step, over all connections of a band
+ */
+public class HandshakeStats {
+
+    private static class Stage {
+        long count;
+        long totalMs;
+        long lastMs;
+        long maxMs;
+        long failures;
+    }
+
+    //in the order the stages first completed
+    private final LinkedHashMap<String, Stage> stages = new LinkedHashMap<>();
+
+    public synchronized void record(String stage, long elapsedMs) {
+        Stage s = get(stage);
+        s.count++;
+        s.totalMs += elapsedMs;
+        s.lastMs = elapsedMs;
+        s.maxMs = Math.max(s.maxMs, elapsedMs);
+    }
+
+    public synchronized void failed(String stage) {
+        get(stage).failures++;
+    }
+
+    /**
+     * @return the time from the start of the last connection to the stage, -1 if it never completed
+     */
+    public synchronized long getLastMs(String stage) {
+        Stage s = stages.get(stage);
+        return s != null && s.count > 0 ? s.lastMs : -1;
+    }
+
+    private Stage get(String stage) {
+        Stage s = stages.get(stage);
+        if (s == null) {
+            s = new Stage();
+            stages.put(stage, s);
+        }
+        return s;
+    }
+
+    public synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+                Stage s = entry.getValue();
+                JSONObject stage = new JSONObject();
+                stage.put("count", s.count);
+                stage.put("lastMs", s.lastMs);
+                stage.put("averageMs", s.count == 0 ? 0 : s.totalMs / s.count);
+                stage.put("maxMs", s.maxMs);
+                stage.put("failures", s.failures);
+                json.put(entry.getKey(), stage);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+}
@@ -4,6 +4,9 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import de.max.miband.bluetooth.BLEAction;
@@ -12,6 +15,10 @@ import de.max.miband.bluetooth.BTCommandManager;
 import de.max.miband.bluetooth.BTConnectionManager;
 import de.max.miband.bluetooth.MiBandDateConverter;
 import de.max.miband.bluetooth.MiBandWrapper;
+import de.max.miband.bluetooth.NotificationDispatcher;
+import de.max.miband.bluetooth.QueueConsumer;
+import de.max.miband.bluetooth.ReadAction;
+import de.max.miband.bluetooth.SyncStats;
 import de.max.miband.bluetooth.WaitAction;
 import de.max.miband.bluetooth.WriteAction;
 import de.max.miband.model.BatteryInfo;
@@ -19,6 +26,7 @@ import de.max.miband.model.LedColor;
 import de.max.miband.model.Profile;
 import de.max.miband.model.Protocol;
 import de.max.miband.model.UserInfo;
+import de.max.miband.sqlite.BandProviders;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -26,26 +34,42 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 public class MiBand {
     private static final String TAG = "MiBand";
-    private static Context context;
-    private static String address;
-    private static BTCommandManager io;
-    private static MiBand instance;
-    private static MiBandWrapper miBandWrapper;
-    private static Intent miBandService;
-    private static BTConnectionManager btConnectionManager;
+    private static final String STEP_TIME = "time";
+    private Context context;
+    private final String address;
+    private final Executor executor;
+    //serves all connections of this band
+    private final QueueConsumer queueConsumer;
+    private final HandshakeStats handshakeStats = new HandshakeStats();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    //when the current connection attempt was started, 0 if unknown
+    private volatile long connectStartedAt;
+    private volatile BTCommandManager io;
+    private MiBandWrapper miBandWrapper;
+    private Intent miBandService;
+    private BTConnectionManager btConnectionManager;
     private boolean currentlySynching = false;
     private ActionCallback connectionCallback;
     private ActionCallback currentSynchCallback;
     private DeviceInfo mDeviceInfo;
     private UserInfo user;
 
-    public MiBand(final Context context, final String address) {
-        MiBand.context = context;
-        MiBand.address = address;
-        MiBand.miBandWrapper = MiBandWrapper.getInstance(context);
+    /**
+     * Creates a band with its own connection, use {@link MiBandPool#get(String)} to share the executor of all bands
+     *
+     * @param executor runs the queue consumer of the band and the notification dispatcher of each connection
+     */
+    public MiBand(final Context context, final String address, Executor executor) {
+        this.context = context;
+        this.address = address;
+        this.executor = executor;
+        this.miBandWrapper = MiBandWrapper.getInstance(context);
+        this.queueConsumer = new QueueConsumer(context, null);
+        executor.execute(queueConsumer);
 
         ActionCallback myConnectionCallback = new ActionCallback() {
             @Override
@@ -53,97 +77,37 @@ public class MiBand {
                 Log.d(TAG, "Connection success, now pair: " + data);
 
                 //only once we are paired, we create the BluetoothIO object to communicate with Mi Band
-                io = new BTCommandManager(context, btConnectionManager.getGatt());
+                io = new BTCommandManager(context, btConnectionManager.getGatt(), btConnectionManager.getCharacteristicTable(), queueConsumer, MiBand.this.executor);
                 btConnectionManager.setIo(io);
-                //Clear Queue
-                io.clearQueue();
+                //tasks queued while reconnecting run now
+                queueConsumer.resume(io);
                 //setLowLatency();
                 btConnectionManager.enableNotifications(true);
 
-                readDeviceInfo(new ActionCallback() {
+                long startedAt = connectStartedAt != 0 ? connectStartedAt : SystemClock.elapsedRealtime();
+                connectStartedAt = 0;
+                handshakeStats.record("connected", SystemClock.elapsedRealtime() - startedAt);
+                createHandshake().start(queueConsumer, startedAt, new Handshake.Listener() {
                     @Override
-                    public void onSuccess(Object data) {
-                        BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic) data;
-                        byte[] value = characteristic.getValue();
-                        mDeviceInfo = new DeviceInfo(value);
-                        Log.d(TAG, "Device info: " + mDeviceInfo);
-                        setUserInfo(UserInfo.getDefault(getAddress(), mDeviceInfo), new ActionCallback() {
-                            @Override
-                            public void onSuccess(Object data) {
-                                //Set to high Latency Mode
-                                setLowLatency();
-                                //Set Current Time
-                                setCurrentTime(new ActionCallback() {
-                                    @Override
-                                    public void onSuccess(Object data) {
-                                        Log.d(TAG, "Current Date successfully set.");
-                                        readDate(new ActionCallback() {
-                                            @Override
-                                            public void onSuccess(Object data) {
-                                                GregorianCalendar calendar = MiBandDateConverter.rawBytesToCalendar((byte[]) data);
-                                                Log.d(TAG, "Current Date on MiBand successfully read: " + DateUtils.convertString(calendar));
-                                                //Set Step Goal
-                                                setFitnessGoal(99999, new ActionCallback() {
-                                                    @Override
-                                                    public void onSuccess(Object data) {
-                                                        Log.d(TAG, "Set Fitness Goal successfully");
-                                                    }
-
-                                                    @Override
-                                                    public void onFail(int errorCode, String msg) {
-                                                        Log.e(TAG, "Set Fitness Goal failed");
-                                                        disconnect();
-                                                    }
-                                                });
-                                            }
-
-                                            @Override
-                                            public void onFail(int errorCode, String msg) {
-                                                Log.e(TAG, "Error reading Date: " + msg);
-                                                disconnect();
-                                            }
-                                        });
-                                    }
-
-                                    @Override
-                                    public void onFail(int errorCode, String msg) {
-                                        Log.e(TAG, "Error setting Date: " + msg);
-                                        //User Info not set, wait some time
-                                        Log.d(TAG, "WAIT... ");
-                                        Thread thread=new Thread(){
-                                            @Override
-                                            public void run(){
-                                                try {
-                                                    synchronized(this){
-                                                        wait(8000);
-                                                        disconnect();
-                                                    }
-                                                }
-                                                catch(InterruptedException ex){
-                                                }
-                                            }
-                                        };
-
-                                        thread.start();
-                                        synchronized(thread){
-                                            thread.notifyAll();
-                                        }
-                                    }
-                                });
-                            }
-
-                            @Override
-                            public void onFail(int errorCode, String msg) {
-                                Log.e(TAG, "Error setting UserInfo: " + msg);
-                                disconnect();
-                            }
-                        });
+                    public void onReady(long elapsedMs) {
+                        Log.d(TAG, "Mi Band ready after " + elapsedMs + " ms");
                     }
 
                     @Override
-                    public void onFail(int errorCode, String msg) {
-                        Log.e(TAG, "No device info");
-                        disconnect();
+                    public void onFail(String step, int errorCode, String msg) {
+                        Log.e(TAG, "Handshake failed at " + step + ": " + msg);
+                        if (STEP_TIME.equals(step)) {
+                            //User Info not set, wait some time
+                            Log.d(TAG, "WAIT... ");
+                            handler.postDelayed(new Runnable() {
+                                @Override
+                                public void run() {
+                                    disconnect();
+                                }
+                            }, 8000);
+                        } else {
+                            disconnect();
+                        }
                     }
                 });
 
@@ -160,19 +124,17 @@ public class MiBand {
             }
         };
 
-        MiBand.btConnectionManager = BTConnectionManager.getInstance(context, myConnectionCallback);
+        this.btConnectionManager = new BTConnectionManager(context, myConnectionCallback);
         //Enable Notifications
         btConnectionManager.toggleNotifications(true);
     }
 
 
-    public synchronized static MiBand getInstance(Context context, String imei) {
-        if (instance == null) {
-            instance = new MiBand(context, imei);
-        } else {
-            MiBand.context = context;
-        }
-        return instance;
+    /**
+     * @return the band of the {@link MiBandPool} with the given address
+     */
+    public static MiBand getInstance(Context context, String address) {
+        return MiBandPool.getInstance(context).get(address);
     }
 
     /**
@@ -190,20 +152,23 @@ public class MiBand {
      */
     public void setFitnessGoal(int fitnessGoal, final ActionCallback callback) {
         final List<BLEAction> list = new ArrayList<>();
-        list.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, new byte[]{
+        list.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, fitnessGoalCommand(fitnessGoal), callback));
+        queue(list);
+    }
+
+    private static byte[] fitnessGoalCommand(int fitnessGoal) {
+        return new byte[]{
                 Protocol.COMMAND_SET_FITNESS_GOAL,
                 0,
                 (byte) (fitnessGoal & 0xff),
                 (byte) ((fitnessGoal >>> 8) & 0xff)
-        }, callback));
-        queue(list);
+        };
     }
 
     /**
-     * Sets the Date on the Band
-     * @param callback, the Action Callback
+     * The command which sets the Date on the Band
      */
-    private void setCurrentTime(ActionCallback callback) {
+    private static byte[] currentTimeCommand() {
         Calendar now = GregorianCalendar.getInstance();
         Date date = now.getTime();
         Log.d(TAG, "Sending current time to Mi Band: " + date + " (" + date.toGMTString() + ")");
@@ -222,11 +187,73 @@ public class MiBand {
                 (byte) 0x0f,
                 (byte) 0x0f
         };
+        return time;
+    }
 
-        final List<BLEAction> list = new ArrayList<>();
-        list.add(new WriteAction(Profile.UUID_CHAR_DATA_TIME, time, callback));
-        queue(list);
-        Log.d(TAG, "Date set.");
+    /**
+     * The steps run after each connection: the device info is needed for the user info, everything after it
+     * is queued back-to-back
+     */
+    private Handshake createHandshake() {
+        return new Handshake(handshakeStats, BLETask.Lane.INTERACTIVE)
+                .then(new Handshake.Step("deviceInfo") {
+                    @Override
+                    protected BLEAction createAction(ActionCallback callback) {
+                        return new ReadAction(Profile.UUID_CHAR_DEVICE_INFO, callback);
+                    }
+
+                    @Override
+                    protected void onResult(Object data) {
+                        mDeviceInfo = new DeviceInfo(((BluetoothGattCharacteristic) data).getValue());
+                        Log.d(TAG, "Device info: " + mDeviceInfo);
+                    }
+                })
+                .then(new Handshake.Step("userInfo") {
+                    @Override
+                    protected BLEAction createAction(ActionCallback callback) {
+                        user = UserInfo.getDefault(getAddress(), mDeviceInfo);
+                        return new WriteAction(Profile.UUID_CHAR_USER_INFO, user.getData(), callback);
+                    }
+                }, new Handshake.Step(STEP_TIME) {
+                    @Override
+                    protected BLEAction createAction(ActionCallback callback) {
+                        return new WriteAction(Profile.UUID_CHAR_DATA_TIME, currentTimeCommand(), callback);
+                    }
+                }, new Handshake.Step("readDate") {
+                    @Override
+                    protected BLEAction createAction(ActionCallback callback) {
+                        return new ReadAction(Profile.UUID_CHAR_DATA_TIME, callback);
+                    }
+
+                    @Override
+                    protected void onResult(Object data) {
+                        GregorianCalendar calendar = MiBandDateConverter.rawBytesToCalendar(((BluetoothGattCharacteristic) data).getValue());
+                        Log.d(TAG, "Current Date on MiBand successfully read: " + DateUtils.convertString(calendar));
+                    }
+                }, new Handshake.Step("fitnessGoal") {
+                    @Override
+                    protected BLEAction createAction(ActionCallback callback) {
+                        return new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, fitnessGoalCommand(99999), callback);
+                    }
+                }, new Handshake.Step("lowLatency") {
+                    //best-effort, the band works without it. Last of the phase, as a timeout aborts the rest of the task
+                    @Override
+                    protected BLEAction createAction(ActionCallback callback) {
+                        return new WriteAction(Profile.UUID_CHAR_LE_PARAMS, io.getLowLatency(), callback);
+                    }
+
+                    @Override
+                    protected boolean isOptional() {
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Connect-to-ready latency of the handshake stages over all connections of this band
+     */
+    public HandshakeStats getHandshakeStats() {
+        return handshakeStats;
     }
 
     /**
@@ -249,7 +276,7 @@ public class MiBand {
                 callback.onFail(errorCode, msg);
             }
         };
-        MiBand.io.readCharacteristic(Profile.UUID_CHAR_DATA_TIME, ioCallback);
+        io.readCharacteristic(Profile.UUID_CHAR_DATA_TIME, ioCallback);
     }
 
     /**
@@ -274,7 +301,7 @@ public class MiBand {
             }
         };
 
-        MiBand.io.readCharacteristic(Profile.UUID_CHAR_REALTIME_STEPS, ioCallback);
+        io.readCharacteristic(Profile.UUID_CHAR_REALTIME_STEPS, ioCallback);
     }
 
     /**
@@ -284,6 +311,15 @@ public class MiBand {
      * Synchronized data directly is stored in the internal sqlite db
      */
     public void startListeningSync(final ActionCallback actionCallback) {
+        startListeningSync(actionCallback, null);
+    }
+
+    /**
+     * Initiate the synchronization process
+     * @param actionCallback, the Action Callback to be called
+     * @param onFinished, run once the synchronization is over, whether it succeeded or not (may be null)
+     */
+    public void startListeningSync(final ActionCallback actionCallback, final Runnable onFinished) {
         checkConnection();
         btConnectionManager.enableSynchronization(true);
         this.io.setSynchFail(false);
@@ -303,6 +339,8 @@ public class MiBand {
                         currentlySynching = false;
                         Log.d(TAG, "Synching stopped.");
                         currentSynchCallback.onSuccess(data);
+                        if (onFinished != null)
+                            onFinished.run();
                     }
 
                     @Override
@@ -310,6 +348,8 @@ public class MiBand {
                         currentlySynching = false;
                         currentSynchCallback.onFail(errorCode, msg);
                         Log.d(TAG, "Synching stopped (ERR).");
+                        if (onFinished != null)
+                            onFinished.run();
                     }
                 });
             }
@@ -319,9 +359,36 @@ public class MiBand {
                 currentlySynching = false;
                 actionCallback.onFail(errorCode, msg);
                 Log.d(TAG, "Synching stopped (ERR).");
+                if (onFinished != null)
+                    onFinished.run();
             }
         }));
-        queue(list2);
+        queue(list2, BLETask.Lane.SYNC);
+    }
+
+    /**
+     * Gives up the running synchronization, its callback fails with the given error
+     */
+    public void failSync(int errorCode, String msg) {
+        if (io != null) {
+            io.failSync(errorCode, msg);
+        }
+    }
+
+    /**
+     * Counters of the current (or last) synchronization
+     * @return the sync stats, or null if not connected yet
+     */
+    public SyncStats getSyncStats() {
+        return io != null ? io.getSyncStats() : null;
+    }
+
+    /**
+     * Counters of the notification delivery of the current (or last) connection
+     * @return the notification dispatcher, or null if not connected yet
+     */
+    public NotificationDispatcher getNotificationDispatcher() {
+        return io != null ? io.getNotificationDispatcher() : null;
     }
 
     /**
@@ -350,10 +417,10 @@ public class MiBand {
     /**
      * Disconnect from the band
      */
-    public static void disconnect() {
+    public void disconnect() {
         Log.e(TAG, "Disconnecting Mi Band...");
         if (miBandService != null)
-            MiBand.context.stopService(miBandService);
+            context.stopService(miBandService);
         btConnectionManager.disconnect();
     }
 
@@ -402,7 +469,7 @@ public class MiBand {
     public void setRealtimeStepsNotifyListener(final RealtimeStepsNotifyListener listener) {
         checkConnection();
 
-        MiBand.io.setNotifyListener(Profile.UUID_CHAR_REALTIME_STEPS, new NotifyListener() {
+        io.setNotifyListener(Profile.UUID_CHAR_REALTIME_STEPS, new NotifyListener() {
             @Override
             public void onNotify(byte[] data) {
                 Log.d(TAG, Arrays.toString(data));
@@ -442,13 +509,25 @@ public class MiBand {
     /**
      * Dispose the band
      */
-    public static void dispose() {
+    public void dispose() {
         Log.e(TAG, "Disposing Mi Band...");
         if (miBandService != null)
-            MiBand.context.stopService(miBandService);
+            context.stopService(miBandService);
         btConnectionManager.dispose();
     }
 
+    /**
+     * Disposes the band and stops its queue consumer, the band can not be used anymore
+     */
+    public void close() {
+        dispose();
+        queueConsumer.stop();
+    }
+
+    public QueueConsumer getQueueConsumer() {
+        return queueConsumer;
+    }
+
     /**
      * Connects to the (first) paired band in bonded devices
      *
@@ -457,12 +536,20 @@ public class MiBand {
     public void connect(final ActionCallback callback) {
         if (!isConnected()) {
             connectionCallback = callback;
+            connectStartedAt = SystemClock.elapsedRealtime();
             btConnectionManager.connect(address);
         } else {
             Log.e(TAG, "Already connected...");
         }
     }
 
+    /**
+     * @return the provider the activities of this band are stored with
+     */
+    public byte getProvider() {
+        return BandProviders.getInstance(context).getProvider(address);
+    }
+
     /**
      * Get the address of the connected band
      * @return the adress
@@ -482,6 +569,7 @@ public class MiBand {
     private void checkConnection() {
         if (!isConnected()) {
             Log.e(TAG, "Not connected... Waiting for new connection...");
+            connectStartedAt = SystemClock.elapsedRealtime();
             btConnectionManager.connect(address);
         }
     }
@@ -507,7 +595,7 @@ public class MiBand {
         ActionCallback cb = new ActionCallback() {
             @Override
             public void onSuccess(Object data) {
-                MiBand.io.readCharacteristic(Profile.UUID_CHAR_DEVICE_NAME_2, callback);
+                io.readCharacteristic(Profile.UUID_CHAR_DEVICE_NAME_2, callback);
             }
 
             @Override
@@ -515,7 +603,7 @@ public class MiBand {
                 callback.onFail(333, "Could not get Device Info");
             }
         };
-        MiBand.io.readCharacteristic(Profile.UUID_CHAR_DEVICE_INFO, callback);
+        io.readCharacteristic(Profile.UUID_CHAR_DEVICE_INFO, callback);
     }
 
     /**
@@ -525,7 +613,7 @@ public class MiBand {
      */
     public void readRssi(ActionCallback callback) {
         checkConnection();
-        MiBand.io.readRssi(callback);
+        io.readRssi(callback);
     }
 
     /**
@@ -554,7 +642,7 @@ public class MiBand {
             }
         };
 
-        MiBand.io.readCharacteristic(Profile.UUID_CHAR_BATTERY, ioCallback);
+        io.readCharacteristic(Profile.UUID_CHAR_BATTERY, ioCallback);
     }
 
 
@@ -572,9 +660,9 @@ public class MiBand {
 
         for (int i = 1; i <= times; i++) {
 
-            list.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, Protocol.VIBRATION_UNTIL_CALL_STOP));
+            list.add(patternCommand(Protocol.VIBRATION_UNTIL_CALL_STOP));
             list.add(new WaitAction(newOnTime));
-            list.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, Protocol.STOP_VIBRATION));
+            list.add(patternCommand(Protocol.STOP_VIBRATION));
             list.add(new WaitAction(offTime));
         }
 
@@ -655,7 +743,7 @@ public class MiBand {
         final List<BLEAction> list = new ArrayList<>();
         list.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, color));
 
-        queue(list);
+        queue(list, BLETask.Lane.INTERACTIVE);
     }
 
     private byte[] convertRgb(int rgb) {
@@ -681,9 +769,9 @@ public class MiBand {
         byte[] protocalOff = {14, colors[0], colors[1], colors[2], 0};
 
         for (int i = 1; i <= flashTimes; i++) {
-            list.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, colors));
+            list.add(patternCommand(colors));
             list.add(new WaitAction(flashDuration));
-            list.add((new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, protocalOff)));
+            list.add(patternCommand(protocalOff));
             list.add(new WaitAction(flashDuration));
         }
 
@@ -696,17 +784,29 @@ public class MiBand {
         byte[] colors = convertRgb(flashColour);
         list.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, Protocol.VIBRATION_WITHOUT_LED));
         list.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, colors));
-        queue(list);
+        queue(list, BLETask.Lane.INTERACTIVE);
     }
 
-    private void queue(List<BLEAction> list) {
-        final BLETask task = new BLETask(list);
+    /**
+     * Creates a control point command of a long pattern, which is sent without response if the band supports it
+     */
+    private static WriteAction patternCommand(byte[] payload) {
+        WriteAction action = new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, payload);
+        action.setWithoutResponse(true);
+        return action;
+    }
 
-        try {
-            io.queueTask(task);
-        } catch (NullPointerException ignored) {
+    /**
+     * Queues the actions in the background lane, e.g. reads, configuration and long patterns
+     * like {@link #customVibration(int, int, int)}, which alerts may preempt
+     */
+    private void queue(List<BLEAction> list) {
+        queue(list, BLETask.Lane.BACKGROUND);
+    }
 
-        }
+    private void queue(List<BLEAction> list, BLETask.Lane lane) {
+        //while disconnected the task waits for the next connection
+        queueConsumer.add(new BLETask(list, lane));
     }
 
     /**
@@ -730,7 +830,7 @@ public class MiBand {
         list.add(new WaitAction(300));
         list.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, colors));
 
-        queue(list);
+        queue(list, BLETask.Lane.INTERACTIVE);
     }
 
     /**
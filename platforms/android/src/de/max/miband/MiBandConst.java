@@ -12,6 +12,8 @@ public final class MiBandConst {
     public static final String PREF_MIBAND_DONT_ACK_TRANSFER = "mi_dont_ack_transfer";
     public static final String PREF_MIBAND_RESERVE_ALARM_FOR_CALENDAR = "mi_reserve_alarm_calendar";
     public static final String PREF_MIBAND_USE_HR_FOR_SLEEP_DETECTION = "mi_hr_sleep_detection";
+    public static final String PREF_MIBAND_SYNC_CHECKPOINT = "mi_sync_checkpoint";
+    public static final String PREF_MIBAND_PROVIDERS = "mi_providers";
 
 
     public static final String ORIGIN_SMS = "sms";
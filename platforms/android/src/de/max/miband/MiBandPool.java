@@ -0,0 +1,200 @@
+package de.max.miband;
+
+import android.content.Context;
+import android.util.Log;
+
+import de.max.miband.bluetooth.NotificationDispatcher;
+import de.max.miband.bluetooth.SyncStats;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The connected bands, keyed by device address. Each band has its own GATT connection, command queue
+ * and sync state, the queue consumers and notification dispatchers of all bands run on one bounded executor.
+ * The activities of each band are stored under its own provider (see {@link de.max.miband.sqlite.BandProviders}).
+ * Synchronizations are started through the {@link SyncScheduler}, so they do not all compete for the radio at once.
+ */
+public class MiBandPool {
+
+    private static final String TAG = MiBandPool.class.getSimpleName();
+
+    //concurrent GATT connections most phones handle reliably
+    public static final int MAX_CONNECTIONS = 4;
+    //a queue consumer and a notification dispatcher per band
+    private static final int THREADS_PER_BAND = 2;
+
+    private static MiBandPool instance;
+
+    private final Context context;
+    private final LinkedHashMap<String, MiBand> bands = new LinkedHashMap<>();
+    private final ThreadPoolExecutor executor;
+    private final SyncScheduler syncScheduler = new SyncScheduler();
+
+    public synchronized static MiBandPool getInstance(Context context) {
+        if (instance == null) {
+            instance = new MiBandPool(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private MiBandPool(Context context) {
+        this.context = context;
+
+        final AtomicInteger threads = new AtomicInteger();
+        int size = MAX_CONNECTIONS * THREADS_PER_BAND;
+        executor = new ThreadPoolExecutor(size, size, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "MiBand-" + threads.incrementAndGet());
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the band with the given address, creating it if needed.
+     * If the pool is full, a band which is neither connected nor connecting is disposed to make room.
+     *
+     * @throws IllegalStateException if {@link #MAX_CONNECTIONS} bands are connected already
+     */
+    public synchronized MiBand get(String address) {
+        String key = address.toUpperCase(Locale.US);
+        MiBand band = bands.get(key);
+        if (band != null) {
+            return band;
+        }
+
+        if (bands.size() >= MAX_CONNECTIONS && !evictIdleBand()) {
+            throw new IllegalStateException("Already " + MAX_CONNECTIONS + " bands connected");
+        }
+
+        band = new MiBand(context, address, executor);
+        bands.put(key, band);
+        Log.d(TAG, "added band " + key + ", " + bands.size() + " band(s) in the pool");
+        return band;
+    }
+
+    /**
+     * Disposes the band with the given address and removes it from the pool
+     */
+    public synchronized void remove(String address) {
+        MiBand band = bands.remove(address.toUpperCase(Locale.US));
+        if (band != null) {
+            band.close();
+        }
+    }
+
+    public synchronized List<MiBand> getBands() {
+        return new ArrayList<>(bands.values());
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public SyncScheduler getSyncScheduler() {
+        return syncScheduler;
+    }
+
+    private boolean evictIdleBand() {
+        Iterator<Map.Entry<String, MiBand>> it = bands.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, MiBand> entry = it.next();
+            MiBand band = entry.getValue();
+            if (!band.isConnected() && !band.isConnecting()) {
+                Log.d(TAG, "evicting idle band " + entry.getKey());
+                it.remove();
+                band.close();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Throughput of all bands: the summed sync counters, the combined transfer rate of the bands
+     * and the notification counters, plus the state of the {@link SyncScheduler}
+     */
+    public JSONObject getStats() {
+        JSONObject json = new JSONObject();
+        try {
+            int connected = 0;
+            long blocks = 0;
+            long bytes = 0;
+            long storedMinutes = 0;
+            double bytesPerSecond = 0;
+            long notifications = 0;
+            long droppedNotifications = 0;
+            JSONArray perBand = new JSONArray();
+
+            for (Map.Entry<String, MiBand> entry : snapshot().entrySet()) {
+                MiBand band = entry.getValue();
+                JSONObject bandJson = new JSONObject();
+                bandJson.put("address", entry.getKey());
+                bandJson.put("connected", band.isConnected());
+                if (band.isConnected()) {
+                    connected++;
+                }
+
+                SyncStats sync = band.getSyncStats();
+                if (sync != null) {
+                    blocks += sync.getBlocks();
+                    bytes += sync.getBytes();
+                    storedMinutes += sync.getStoredMinutes();
+                    if (sync.getDuration() > 0) {
+                        bytesPerSecond += sync.getBytes() * 1000.0 / sync.getDuration();
+                    }
+                    bandJson.put("sync", sync.toJSON());
+                }
+
+                bandJson.put("queue", band.getQueueConsumer().getLaneStats());
+
+                NotificationDispatcher dispatcher = band.getNotificationDispatcher();
+                if (dispatcher != null) {
+                    notifications += dispatcher.getDelivered();
+                    droppedNotifications += dispatcher.getDropped();
+                }
+                perBand.put(bandJson);
+            }
+
+            json.put("bands", perBand.length());
+            json.put("connected", connected);
+            json.put("blocks", blocks);
+            json.put("bytes", bytes);
+            json.put("storedMinutes", storedMinutes);
+            json.put("combinedBytesPerSecond", Math.round(bytesPerSecond));
+            json.put("notifications", notifications);
+            json.put("droppedNotifications", droppedNotifications);
+            JSONObject threads = new JSONObject();
+            threads.put("pool", executor.getPoolSize());
+            threads.put("active", executor.getActiveCount());
+            threads.put("largest", executor.getLargestPoolSize());
+            threads.put("queued", executor.getQueue().size());
+            json.put("threads", threads);
+            json.put("scheduler", syncScheduler.toJSON());
+            json.put("perBand", perBand);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    private synchronized Map<String, MiBand> snapshot() {
+        return new LinkedHashMap<>(bands);
+    }
+}
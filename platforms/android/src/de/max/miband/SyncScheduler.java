@@ -0,0 +1,175 @@
+package de.max.miband;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+
+/**
+ * Starts the synchronizations of the bands of the {@link MiBandPool}. At most {@link #MAX_CONCURRENT_SYNCS}
+ * run at the same time, as the radio shares its connection events between all bands, and two starts are
+ * at least {@link #STAGGER_MS} apart, so the latency changes and first bursts of the bands do not collide.
+ * Further requests wait in order.
+ */
+public class SyncScheduler {
+
+    private static final String TAG = SyncScheduler.class.getSimpleName();
+
+    public static final int ERROR_SYNC_SCHEDULED = 338;
+    public static final int ERROR_SYNC_TIMEOUT = 339;
+
+    public static final int MAX_CONCURRENT_SYNCS = 2;
+    public static final long STAGGER_MS = 1500;
+    //a synchronization which has not finished by then is failed and gives up its slot
+    public static final long MAX_SYNC_MS = 5 * 60 * 1000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    //guarded by this
+    private final ArrayDeque<Request> pending = new ArrayDeque<>();
+    private final HashSet<MiBand> scheduled = new HashSet<>();
+    private int running;
+    private long lastStart;
+    private boolean startPosted;
+
+    private long started;
+    private long finished;
+    private long totalQueueDelayMs;
+    private long maxQueueDelayMs;
+    private int maxConcurrent;
+
+    private final Runnable startNext = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SyncScheduler.this) {
+                startPosted = false;
+            }
+            startNext();
+        }
+    };
+
+    private class Request implements Runnable {
+        final MiBand band;
+        final ActionCallback callback;
+        final long queuedAt = SystemClock.elapsedRealtime();
+        boolean done;
+
+        Request(MiBand band, ActionCallback callback) {
+            this.band = band;
+            this.callback = callback;
+        }
+
+        //the synchronization is over or has timed out
+        @Override
+        public void run() {
+            //a stalled synchronization must not keep the other bands waiting
+            if (band.isCurrentlySynching()) {
+                Log.w(TAG, "synchronization still running after " + MAX_SYNC_MS + " ms, failing it");
+                band.failSync(ERROR_SYNC_TIMEOUT, "Synchronization timed out after " + MAX_SYNC_MS + " ms");
+            }
+            finish(this);
+        }
+    }
+
+    /**
+     * Queues a synchronization of the band, the callback is called like the one of {@link MiBand#startListeningSync(ActionCallback)}
+     */
+    public void schedule(MiBand band, ActionCallback callback) {
+        boolean added;
+        synchronized (this) {
+            added = scheduled.add(band);
+            if (added) {
+                pending.addLast(new Request(band, callback));
+            }
+        }
+        if (!added) {
+            callback.onFail(ERROR_SYNC_SCHEDULED, "Synchronization already scheduled");
+            return;
+        }
+        startNext();
+    }
+
+    private void startNext() {
+        while (true) {
+            final Request request;
+            final int waiting;
+            synchronized (this) {
+                if (running >= MAX_CONCURRENT_SYNCS || pending.isEmpty()) {
+                    return;
+                }
+                long wait = lastStart + STAGGER_MS - SystemClock.elapsedRealtime();
+                if (wait > 0) {
+                    if (!startPosted) {
+                        startPosted = true;
+                        handler.postDelayed(startNext, wait);
+                    }
+                    return;
+                }
+
+                request = pending.pollFirst();
+                running++;
+                started++;
+                lastStart = SystemClock.elapsedRealtime();
+                long delay = lastStart - request.queuedAt;
+                totalQueueDelayMs += delay;
+                maxQueueDelayMs = Math.max(maxQueueDelayMs, delay);
+                maxConcurrent = Math.max(maxConcurrent, running);
+                waiting = pending.size();
+            }
+
+            Log.d(TAG, "starting synchronization, " + waiting + " waiting");
+            handler.postDelayed(request, MAX_SYNC_MS);
+            try {
+                request.band.startListeningSync(request.callback, request);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "synchronization could not be started", e);
+                finish(request);
+                request.callback.onFail(-1, "Synchronization could not be started");
+            }
+        }
+    }
+
+    private void finish(Request request) {
+        synchronized (this) {
+            if (request.done) {
+                return;
+            }
+            request.done = true;
+            running--;
+            finished++;
+            scheduled.remove(request.band);
+        }
+        handler.removeCallbacks(request);
+        startNext();
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    public synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("running", running);
+            json.put("pending", pending.size());
+            json.put("started", started);
+            json.put("finished", finished);
+            json.put("averageQueueDelayMs", started == 0 ? 0 : totalQueueDelayMs / started);
+            json.put("maxQueueDelayMs", maxQueueDelayMs);
+            json.put("maxConcurrent", maxConcurrent);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+}
@@ -0,0 +1,78 @@
+package de.max.miband.bluetooth;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * Reusable slot the {@link QueueConsumer} waits on for the result of the running {@link BLEAction}.
+ * It is armed with the operation and characteristic of the action before it runs, so a result
+ * arriving before {@link #await(long)} is not lost. Results arriving while it is not armed, or for
+ * another operation or characteristic (e.g. the late result of an action which timed out), are ignored.
+ */
+class ActionCompletion {
+
+    private static final String TAG = "ActionCompletion";
+
+    private boolean armed;
+    private boolean completed;
+    private BLEAction.Operation operation;
+    private UUID characteristic;
+
+    synchronized void arm(BLEAction.Operation operation, UUID characteristic) {
+        this.operation = operation;
+        this.characteristic = characteristic;
+        armed = true;
+        completed = false;
+    }
+
+    /**
+     * Called when a GATT result has arrived, completes the running action if the result belongs to it
+     */
+    synchronized void complete(BLEAction.Operation operation, UUID characteristic) {
+        if (!armed) {
+            return;
+        }
+        if (operation != this.operation || (this.characteristic != null && !this.characteristic.equals(characteristic))) {
+            Log.w(TAG, "ignoring " + operation + " result for " + characteristic + ", waiting for " + this.operation + " on " + this.characteristic);
+            return;
+        }
+        cancel();
+    }
+
+    /**
+     * Stops waiting for the result of the running action, whatever it is, e.g. because it has been aborted
+     */
+    synchronized void cancel() {
+        if (armed) {
+            armed = false;
+            completed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits for {@link #complete(BLEAction.Operation, UUID)}
+     *
+     * @param timeoutMs : the maximum time to wait, 0 to wait forever
+     * @return true if completed, false if the timeout elapsed first
+     */
+    synchronized boolean await(long timeoutMs) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        while (!completed) {
+            if (timeoutMs <= 0) {
+                wait();
+                continue;
+            }
+
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                armed = false;
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+}
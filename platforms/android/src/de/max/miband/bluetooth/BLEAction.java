@@ -10,6 +10,9 @@ import java.util.UUID;
  */
 public abstract interface BLEAction {
 
+    //time to wait for the result of an action before it is retried or failed
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
     /**
      * Returns true if this actions expects an (async) result which must
      * be waited for, before continuing with other actions.
@@ -20,8 +23,30 @@ public abstract interface BLEAction {
      */
     public abstract boolean expectsResult();
 
+    /**
+     * The kind of GATT callback which delivers the result of an action
+     */
+    public enum Operation {
+        READ, WRITE, DESCRIPTOR
+    }
+
+    /**
+     * @return the kind of result this action waits for, null if it does not expect one
+     */
+    public Operation getOperation();
+
     public UUID getCharacteristic();
 
+    /**
+     * @return the time in ms to wait for the result, 0 to wait forever
+     */
+    public long getTimeout();
+
+    /**
+     * @return how often the action is run again after its result timed out
+     */
+    public int getRetries();
+
     /**
      * Executes this action, e.g. reads or write a GATT characteristic.
      *
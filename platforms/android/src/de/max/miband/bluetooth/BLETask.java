@@ -1,18 +1,88 @@
 package de.max.miband.bluetooth;
 
+import android.os.SystemClock;
+
 import java.util.List;
 
 /**
  * Created by Lewis on 04/01/15.
  */
 public class BLETask {
+
+    /**
+     * The lanes of the {@link QueueConsumer}, ordered by priority (highest first)
+     */
+    public enum Lane {
+        //user facing alerts, e.g. a notification vibration
+        INTERACTIVE,
+        //commands which keep a running synchronization going, e.g. acks
+        SYNC,
+        //reads, configuration and long running patterns
+        BACKGROUND
+    }
+
     private final List<BLEAction> actions;
+    private Lane lane;
+    private long enqueuedAt;
+    //index of the next action to run, a preempted task resumes from here
+    private int position;
+    //end of the current WaitAction of a parked task
+    private long resumeAt;
 
     public BLETask(final List<BLEAction> actions) {
+        this(actions, Lane.BACKGROUND);
+    }
+
+    public BLETask(final List<BLEAction> actions, Lane lane) {
         this.actions = actions;
+        this.lane = lane;
     }
 
     public List<BLEAction> getActions() {
         return actions;
     }
+
+    public Lane getLane() {
+        return lane;
+    }
+
+    void setLane(Lane lane) {
+        this.lane = lane;
+    }
+
+    long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    void markEnqueued() {
+        enqueuedAt = SystemClock.elapsedRealtime();
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    void setPosition(int position) {
+        this.position = position;
+    }
+
+    long getResumeAt() {
+        return resumeAt;
+    }
+
+    void setResumeAt(long resumeAt) {
+        this.resumeAt = resumeAt;
+    }
+
+    /**
+     * @return true if the task waits between its commands, e.g. a vibration or flash pattern
+     */
+    boolean isPattern() {
+        for (BLEAction action : actions) {
+            if (action instanceof WaitAction) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -4,16 +4,22 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 
 import de.max.miband.ActionCallback;
 import de.max.miband.DateUtils;
 import de.max.miband.NotifyListener;
+import de.max.miband.model.MiBandCharacteristic;
 import de.max.miband.model.Profile;
 import de.max.miband.model.Protocol;
 import de.max.miband.models.ActivityData;
-import de.max.miband.sqlite.ActivitySQLite;
+import de.max.miband.sqlite.ActivityWatermark;
+import de.max.miband.sqlite.ActivityWriter;
+import de.max.miband.sqlite.BandProviders;
 
 import java.io.IOException;
 import java.text.DateFormat;
@@ -21,9 +27,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 public class BTCommandManager {
@@ -35,41 +41,129 @@ public class BTCommandManager {
     private ActionCallback currentSynchCallback;
     private QueueConsumer mQueueConsumer;
 
-    public HashMap<UUID, NotifyListener> notifyListeners = new HashMap<UUID, NotifyListener>();
+    //the listeners set with setNotifyListener, indexed by MiBandCharacteristic
+    private final NotifyListener[] notifyListeners = new NotifyListener[MiBandCharacteristic.values().length];
+    private final NotificationDispatcher notificationDispatcher = new NotificationDispatcher();
 
     private Context context;
     public BluetoothGatt gatt;
+    private final CharacteristicTable characteristics;
 
     public void clearQueue() {
         this.mQueueConsumer.clear();
     }
 
-    public void setSynchFail(boolean synchFail) {
-        this.synchFail = synchFail;
+    public void setSynchFail(final boolean synchFail) {
+        runOnSyncThread(new Runnable() {
+            @Override
+            public void run() {
+                BTCommandManager.this.synchFail = synchFail;
+            }
+        });
     }
 
+    //the synchronization state below is only touched on the sync thread, which gets both the
+    //activity chunks from the binder thread and the commit results of the ActivityWriter
+    private final HandlerThread syncThread = new HandlerThread(TAG + "-sync");
+    private final Handler syncHandler;
+
     private boolean synchFail = false;
     private int receivedChunks=0;
     private int totalChunks=0;
 
-    public BTCommandManager(Context context, BluetoothGatt gatt) {
+    private SyncCheckpoint syncCheckpoint;
+    //keys the stored activities of this band
+    private byte provider = ActivityData.PROVIDER_MIBAND;
+    private final SyncStats syncStats = new SyncStats();
+
+    /**
+     * @param characteristics the characteristics resolved after the service discovery of the gatt
+     * @param queueConsumer   the consumer of the band, it is resumed with this connection by the caller
+     * @param executor        runs the notification dispatcher of this connection
+     */
+    public BTCommandManager(Context context, BluetoothGatt gatt, CharacteristicTable characteristics, QueueConsumer queueConsumer, Executor executor) {
         this.context = context;
         this.gatt = gatt;
+        this.characteristics = characteristics;
+
+        //reload the newest stored timestamp once for this connection
+        ActivityWatermark.getInstance(context).invalidate();
+
+        if (gatt != null && gatt.getDevice() != null) {
+            syncCheckpoint = new SyncCheckpoint(context, gatt.getDevice().getAddress());
+            provider = BandProviders.getInstance(context).getProvider(gatt.getDevice().getAddress());
+        }
 
-        mQueueConsumer = new QueueConsumer(context, this);
+        mQueueConsumer = queueConsumer;
 
-        Thread t = new Thread(mQueueConsumer);
-        t.start();
+        syncThread.start();
+        syncHandler = new Handler(syncThread.getLooper());
+
+        notificationDispatcher.subscribe(MiBandCharacteristic.NOTIFICATION, new NotifyListener() {
+            @Override
+            public void onNotify(byte[] data) {
+                handleNotificationNotif(data);
+            }
+        });
+        notificationDispatcher.start(executor);
+    }
+
+    /**
+     * Stops the notification dispatcher and the sync thread of this connection
+     */
+    public void shutdown() {
+        notificationDispatcher.shutdown();
+        syncThread.quitSafely();
+    }
+
+    private void runOnSyncThread(Runnable runnable) {
+        if (Looper.myLooper() == syncThread.getLooper()) {
+            runnable.run();
+        } else {
+            syncHandler.post(runnable);
+        }
+    }
+
+    private synchronized void setCurrentCallback(ActionCallback callback) {
+        this.currentCallback = callback;
+    }
+
+    private synchronized ActionCallback takeCurrentCallback() {
+        ActionCallback callback = this.currentCallback;
+        this.currentCallback = null;
+        return callback;
+    }
+
+    private synchronized ActionCallback takeCurrentSynchCallback() {
+        ActionCallback callback = this.currentSynchCallback;
+        this.currentSynchCallback = null;
+        return callback;
     }
 
     public void queueTask(final BLETask task) {
         mQueueConsumer.add(task);
     }
 
+    /**
+     * Queues the task in the given lane of the {@link QueueConsumer}
+     */
+    public void queueTask(final BLETask task, BLETask.Lane lane) {
+        task.setLane(lane);
+        mQueueConsumer.add(task);
+    }
+
     public QueueConsumer getmQueueConsumer() {
         return mQueueConsumer;
     }
 
+    public SyncStats getSyncStats() {
+        return syncStats;
+    }
+
+    public SyncCheckpoint getSyncCheckpoint() {
+        return syncCheckpoint;
+    }
+
     public void writeAndRead(final UUID uuid, byte[] valueToWrite, final ActionCallback callback) {
         ActionCallback readCallback = new ActionCallback() {
 
@@ -95,12 +189,13 @@ public class BTCommandManager {
      */
     public void writeCharacteristic(UUID uuid, byte[] value, ActionCallback callback) {
         try {
-            this.currentCallback = callback;
-            BluetoothGattCharacteristic chara = gatt.getService(Profile.UUID_SERVICE_MILI).getCharacteristic(uuid);
+            setCurrentCallback(callback);
+            BluetoothGattCharacteristic chara = characteristics.get(uuid);
             if (null == chara) {
                 this.onFail(-1, "BluetoothGattCharacteristic " + uuid + " doesn't exist");
                 return;
             }
+            chara.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
             chara.setValue(value);
             if (!this.gatt.writeCharacteristic(chara)) {
                 this.onFail(-1, "gatt.writeCharacteristic() return false");
@@ -115,22 +210,24 @@ public class BTCommandManager {
     }
 
 
-    public void setCurrentSynchCallback(ActionCallback currentSynchCallback) {
+    public synchronized void setCurrentSynchCallback(ActionCallback currentSynchCallback) {
         this.currentSynchCallback = currentSynchCallback;
     }
 
-    public ActionCallback getCurrentSynchCallback() {
+    public synchronized ActionCallback getCurrentSynchCallback() {
         return currentSynchCallback;
     }
 
     public boolean writeCharacteristicWithResponse(UUID service, UUID uuid, byte[] value, ActionCallback callback) {
         try {
-            this.currentCallback = callback;
-            BluetoothGattCharacteristic chara = gatt.getService(service).getCharacteristic(uuid);
+            setCurrentCallback(callback);
+            BluetoothGattCharacteristic chara = Profile.UUID_SERVICE_MILI.equals(service)
+                    ? characteristics.get(uuid) : gatt.getService(service).getCharacteristic(uuid);
             if (null == chara) {
                 this.onFail(333, "Characteristic is null");
                 return false;
             }
+            chara.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
             chara.setValue(value);
 
             if (this.gatt.writeCharacteristic(chara)) {
@@ -148,13 +245,14 @@ public class BTCommandManager {
 
     public boolean writeCharacteristicWithResponse(UUID uuid, byte[] value, ActionCallback callback) {
         try {
-            this.currentCallback = callback;
+            setCurrentCallback(callback);
 
-            BluetoothGattCharacteristic chara = gatt.getService(Profile.UUID_SERVICE_MILI).getCharacteristic(uuid);
+            BluetoothGattCharacteristic chara = characteristics.get(uuid);
             if (null == chara) {
                 this.onFail(333, "Characteristic is null");
                 return false;
             }
+            chara.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
             chara.setValue(value);
 
             if (this.gatt.writeCharacteristic(chara)) {
@@ -173,6 +271,45 @@ public class BTCommandManager {
         }
     }
 
+    /**
+     * @return true if the characteristic accepts writes without response
+     */
+    public boolean supportsWriteWithoutResponse(UUID uuid) {
+        return characteristics.supportsWriteWithoutResponse(uuid);
+    }
+
+    /**
+     * Sends a command without waiting for the band to acknowledge it.
+     * The callback succeeds with the characteristic, like the one of an acknowledged write,
+     * as soon as the command has been handed to the bluetooth stack.
+     *
+     * @return false if the stack did not accept the command (e.g. it is busy), the callback is not called then
+     */
+    public boolean writeCharacteristicWithoutResponse(UUID uuid, byte[] value, ActionCallback callback) {
+        BluetoothGattCharacteristic chara;
+        try {
+            chara = characteristics.get(uuid);
+            if (null == chara) {
+                return false;
+            }
+            chara.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            chara.setValue(value);
+
+            if (!this.gatt.writeCharacteristic(chara)) {
+                chara.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                return false;
+            }
+        } catch (Throwable tr) {
+            Log.e(TAG, "writeCharacteristicWithoutResponse", tr);
+            return false;
+        }
+
+        if (callback != null) {
+            callback.onSuccess(chara);
+        }
+        return true;
+    }
+
     /**
      * Reads a command from the Mi Band
      *
@@ -181,8 +318,8 @@ public class BTCommandManager {
      */
     public void readCharacteristic(UUID uuid, ActionCallback callback) {
         try {
-            this.currentCallback = callback;
-            BluetoothGattCharacteristic chara = gatt.getService(Profile.UUID_SERVICE_MILI).getCharacteristic(uuid);
+            setCurrentCallback(callback);
+            BluetoothGattCharacteristic chara = characteristics.get(uuid);
             if (null == chara) {
                 this.onFail(-1, "BluetoothGattCharacteristic " + uuid + " doesn't exist");
                 return;
@@ -199,8 +336,8 @@ public class BTCommandManager {
 
     public boolean readCharacteristicWithResponse(UUID uuid, ActionCallback callback) {
         try {
-            this.currentCallback = callback;
-            BluetoothGattCharacteristic chara = gatt.getService(Profile.UUID_SERVICE_MILI).getCharacteristic(uuid);
+            setCurrentCallback(callback);
+            BluetoothGattCharacteristic chara = characteristics.get(uuid);
             if (null == chara) {
                 return false;
             }
@@ -220,7 +357,7 @@ public class BTCommandManager {
      */
     public void readRssi(ActionCallback callback) {
         try {
-            this.currentCallback = callback;
+            setCurrentCallback(callback);
             this.gatt.readRemoteRssi();
         } catch (Throwable tr) {
             tr.printStackTrace();
@@ -229,19 +366,31 @@ public class BTCommandManager {
         }
     }
 
-    public void setNotifyListener(UUID characteristicId, NotifyListener listener) {
-        if (this.notifyListeners.containsKey(characteristicId))
+    /**
+     * Enables the notifications of the characteristic and subscribes the listener to the {@link NotificationDispatcher}.
+     * Only the first listener of a characteristic is set.
+     */
+    public synchronized void setNotifyListener(UUID characteristicId, NotifyListener listener) {
+        MiBandCharacteristic id = MiBandCharacteristic.fromUuid(characteristicId);
+        if (id == null || this.notifyListeners[id.ordinal()] != null)
             return;
 
-        BluetoothGattCharacteristic chara = gatt.getService(Profile.UUID_SERVICE_MILI).getCharacteristic(characteristicId);
+        BluetoothGattCharacteristic chara = characteristics.get(id);
         if (chara == null)
             return;
 
         this.gatt.setCharacteristicNotification(chara, true);
-        BluetoothGattDescriptor descriptor = chara.getDescriptor(Profile.UUID_DESCRIPTOR_UPDATE_NOTIFICATION);
-        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        this.gatt.writeDescriptor(descriptor);
-        this.notifyListeners.put(characteristicId, listener);
+        BluetoothGattDescriptor descriptor = characteristics.getNotifyDescriptor(id);
+        if (descriptor != null) {
+            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            this.gatt.writeDescriptor(descriptor);
+        }
+        this.notifyListeners[id.ordinal()] = listener;
+        this.notificationDispatcher.subscribe(id, listener);
+    }
+
+    public NotificationDispatcher getNotificationDispatcher() {
+        return notificationDispatcher;
     }
 
 
@@ -285,30 +434,70 @@ public class BTCommandManager {
     }
 
     public void onSuccess(Object data) {
-        if (data.equals("sync complete") && this.currentSynchCallback != null) {
-            this.currentSynchCallback.onSuccess("sync complete");
-            this.currentSynchCallback = null;
+        if (data.equals("sync complete")) {
+            ActionCallback synchCallback = takeCurrentSynchCallback();
+            if (synchCallback != null) {
+                synchCallback.onSuccess("sync complete");
+            }
         }
 
-        if (this.currentCallback != null) {
-            ActionCallback callback = this.currentCallback;
-            this.currentCallback = null;
+        ActionCallback callback = takeCurrentCallback();
+        if (callback != null) {
             callback.onSuccess(data);
         }
     }
 
+    /**
+     * Fails the callback of the running action only, e.g. after its result timed out.
+     * Unlike {@link #onFail(int, String)} a running synchronization is not stopped.
+     */
+    public void failCurrentAction(int errorCode, String msg) {
+        ActionCallback callback = takeCurrentCallback();
+        if (callback != null) {
+            callback.onFail(errorCode, msg);
+        }
+    }
+
     public void onFail(int errorCode, String msg) {
-        this.synchFail = true;
-        handleActivityFetchFinish();
-        if (this.currentCallback != null) {
-            ActionCallback callback = this.currentCallback;
-            this.currentCallback = null;
+        runOnSyncThread(new Runnable() {
+            @Override
+            public void run() {
+                synchFail = true;
+                handleActivityFetchFinish();
+            }
+        });
+
+        ActionCallback callback = takeCurrentCallback();
+        if (callback != null) {
             callback.onFail(errorCode, msg);
         }
 
-        if (this.currentSynchCallback != null) {
-            this.currentSynchCallback.onFail(errorCode, msg);
-            this.currentSynchCallback = null;
+        ActionCallback synchCallback = takeCurrentSynchCallback();
+        if (synchCallback != null) {
+            synchCallback.onFail(errorCode, msg);
+        }
+    }
+
+    /**
+     * Stops the running synchronization, e.g. because it has stalled.
+     * Unlike {@link #onFail(int, String)} the callback of the running action is not failed.
+     */
+    public void failSync(int errorCode, String msg) {
+        runOnSyncThread(new Runnable() {
+            @Override
+            public void run() {
+                synchFail = true;
+                handleActivityFetchFinish();
+            }
+        });
+
+        final List<BLEAction> list = new ArrayList<>();
+        list.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, Protocol.COMMAND_STOP_SYNC_DATA));
+        queueTask(new BLETask(list, BLETask.Lane.SYNC));
+
+        ActionCallback synchCallback = takeCurrentSynchCallback();
+        if (synchCallback != null) {
+            synchCallback.onFail(errorCode, msg);
         }
     }
 
@@ -360,6 +549,10 @@ public class BTCommandManager {
         private GregorianCalendar activityDataTimestampProgress = null;
         //same as above, but remains untouched for the ack message
         private GregorianCalendar activityDataTimestampToAck = null;
+        //true if the current block has already been stored by a previous synchronization
+        private boolean skipBlock = false;
+        //the storage result of the batches of the current block
+        private BlockState block = new BlockState();
 
         ActivityStruct(int activityDataHolderSize) {
             this.activityDataHolderSize = activityDataHolderSize;
@@ -387,6 +580,12 @@ public class BTCommandManager {
             validate();
         }
 
+        public void skip(byte[] value) {
+            activityDataRemainingBytes -= value.length;
+
+            validate();
+        }
+
         private void validate() {
             if (activityDataRemainingBytes < 0) {
                 throw new AssertionError("Illegal state, remaining bytes is negative");
@@ -416,6 +615,8 @@ public class BTCommandManager {
             }
             activityDataTimestampToAck = (GregorianCalendar) timestamp.clone();
             activityDataRemainingBytes = activityDataUntilNextHeader = dataUntilNextHeader;
+            skipBlock = false;
+            block = new BlockState();
             validate();
         }
 
@@ -429,13 +630,49 @@ public class BTCommandManager {
         }
     }
 
+    /**
+     * Set on the sync thread when a batch of a block could not be stored,
+     * the block must then neither be committed to the checkpoint nor acked
+     */
+    private static class BlockState {
+        boolean failed;
+        int errorCode;
+        String msg;
+
+        void fail(int errorCode, String msg) {
+            if (!failed) {
+                failed = true;
+                this.errorCode = errorCode;
+                this.msg = msg;
+            }
+        }
+    }
+
     private ActivityStruct activityStruct;
 
+    /**
+     * Called from the binder thread, the chunk is handled in order on the sync thread
+     */
     public void handleActivityNotif(byte[] value) {
+        if (value == null) {
+            return;
+        }
+        //the characteristic's value may be replaced by the next notification
+        final byte[] chunk = value.clone();
+        syncHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onActivityChunk(chunk);
+            }
+        });
+    }
+
+    private void onActivityChunk(byte[] value) {
         boolean firstChunk = activityStruct == null && !this.synchFail;
         if (firstChunk) {
             activityStruct = new ActivityStruct(3 * 60 * 4);
             receivedChunks=0;
+            syncStats.reset();
         }
 
         if (!this.synchFail) {
@@ -446,13 +683,13 @@ public class BTCommandManager {
             }
 
             if (activityStruct.isBlockFinished()) {
-                sendAckDataTransfer(activityStruct.activityDataTimestampToAck, activityStruct.activityDataUntilNextHeader);
+                sendAckDataTransfer(activityStruct.activityDataTimestampToAck, activityStruct.activityDataUntilNextHeader, activityStruct.skipBlock);
                 //GB.updateTransferNotification("", false, 100, getContext());
             }
         }else{
             final List<BLEAction> list2 = new ArrayList<>();
             list2.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, Protocol.COMMAND_STOP_SYNC_DATA));
-            BLETask task2 = new BLETask(list2);
+            BLETask task2 = new BLETask(list2, BLETask.Lane.SYNC);
             queueTask(task2);
 
             Log.e(TAG, "SYNCHO STOPPED AND NOT COMPLETED");
@@ -525,6 +762,13 @@ public class BTCommandManager {
         Log.d(TAG, "TIMESTAMP: " + DateFormat.getDateTimeInstance().format(timestamp.getTime()) + " magic byte: " + dataUntilNextHeader);
         if (activityStruct != null) {
             activityStruct.startNewBlock(timestamp, dataUntilNextHeader);
+
+            int blockTimestamp = (int) (activityStruct.activityDataTimestampToAck.getTimeInMillis() / 1000);
+            activityStruct.skipBlock = syncCheckpoint != null && syncCheckpoint.covers(blockTimestamp, dataUntilNextHeader);
+            syncStats.blockReceived(dataUntilNextHeader, activityStruct.skipBlock);
+            if (activityStruct.skipBlock) {
+                Log.d(TAG, "block already stored, skipping " + dataUntilNextHeader + " bytes");
+            }
         } else {
             this.onFail(333, "ActivityStruct is null");
         }
@@ -534,25 +778,31 @@ public class BTCommandManager {
     private void bufferActivityData(byte[] value) {
         if (activityStruct.hasRoomFor(value)) {
             if (activityStruct.isValidData(value)) {
+                if (activityStruct.skipBlock) {
+                    activityStruct.skip(value);
+                    return;
+                }
+
                 activityStruct.buffer(value);
 
                 if (activityStruct.isBufferFull()) {
-                    flushActivityDataHolder();
+                    flushActivityDataHolder(null);
                 }
             } else {
                 // the length of the chunk is not what we expect. We need to make sense of this data
                 Log.e(TAG, "GOT UNEXPECTED ACTIVITY DATA WITH LENGTH: " + value.length + ", EXPECTED LENGTH: " + activityStruct.activityDataRemainingBytes);
             }
         } else {
+            int remainingBytes = activityStruct.activityDataRemainingBytes;
             handleActivityFetchFinish();
-            Log.e(TAG, "error buffering activity data: remaining bytes: " + activityStruct.activityDataRemainingBytes + ", received: " + value.length);
+            Log.e(TAG, "error buffering activity data: remaining bytes: " + remainingBytes + ", received: " + value.length);
             try {
                 final List<BLEAction> list = new ArrayList<>();
                 list.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, Protocol.COMMAND_STOP_SYNC_DATA));
-                final BLETask task = new BLETask(list);
+                final BLETask task = new BLETask(list, BLETask.Lane.SYNC);
                 queueTask(task);
 
-                onFail(333, "error buffering activity data: remaining bytes:" + activityStruct.activityDataRemainingBytes + ", received: " + value.length);
+                onFail(333, "error buffering activity data: remaining bytes:" + remainingBytes + ", received: " + value.length);
 
             } catch (Exception e) {
                 onFail(333, "error stopping activity sync");
@@ -567,55 +817,116 @@ public class BTCommandManager {
         activityStruct = null;
     }
 
-    private void flushActivityDataHolder() {
+    /**
+     * Hands the buffered minutes over to the {@link ActivityWriter} and resets the buffer.
+     *
+     * @param onCommitted called on the sync thread once the buffered data (and everything
+     *                    flushed before) has been stored, may be null. It fails if any batch
+     *                    of the block has failed.
+     */
+    private void flushActivityDataHolder(final ActionCallback onCommitted) {
         if (activityStruct == null) {
             Log.d(TAG, "nothing to flush, struct is already null");
             return;
         }
 
-        int minutes = 0;
+        //TODO: check if multiple of 3, if not something is wrong
+        final int minutes = activityStruct.activityDataHolderProgress / 3;
+        final BlockState block = activityStruct.block;
 
         try {
-            byte category, intensity, steps;
-            ActivitySQLite dbHandler = ActivitySQLite.getInstance(context);
             int timestampInSeconds = (int) (activityStruct.activityDataTimestampProgress.getTimeInMillis() / 1000);
 
-            for (int i = 0; i < activityStruct.activityDataHolderProgress; i += 3) { //TODO: check if multiple of 3, if not something is wrong
-                category = activityStruct.activityDataHolder[i];
-                intensity = activityStruct.activityDataHolder[i + 1];
-                steps = activityStruct.activityDataHolder[i + 2];
-
-                dbHandler.saveActivity(
-                        timestampInSeconds,
-                        ActivityData.PROVIDER_MIBAND,
-                        intensity,
-                        steps & 0xff,
-                        category);
-
-
-                //activityStruct.activityDataTimestampProgress.add(Calendar.MINUTE, 1);
-                timestampInSeconds += 60;
-                minutes++;
-                receivedChunks+=1;
-            }
+            ActivityWriter.getInstance(context).submit(
+                    timestampInSeconds,
+                    provider,
+                    activityStruct.activityDataHolder,
+                    minutes * 3,
+                    new ActionCallback() {
+                        //called from the writer thread, the result is handed back to the sync thread
+                        @Override
+                        public void onSuccess(final Object data) {
+                            runOnSyncThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    receivedChunks += minutes;
+                                    syncStats.minutesStored(minutes);
+                                    if (onCommitted == null) {
+                                        return;
+                                    }
+                                    //an earlier batch of the block is missing
+                                    if (block.failed) {
+                                        onCommitted.onFail(block.errorCode, block.msg);
+                                    } else {
+                                        onCommitted.onSuccess(data);
+                                    }
+                                }
+                            });
+                        }
+
+                        @Override
+                        public void onFail(final int errorCode, final String msg) {
+                            Log.e(TAG, "storing activity data failed: " + msg);
+                            runOnSyncThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    block.fail(errorCode, msg);
+                                    if (onCommitted != null) {
+                                        onCommitted.onFail(block.errorCode, block.msg);
+                                    }
+                                }
+                            });
+                        }
+                    });
         }
         catch (Exception e){
             e.printStackTrace();
+            block.fail(333, "Unable to store activity data");
+            if (onCommitted != null) {
+                onCommitted.onFail(block.errorCode, block.msg);
+            }
         }
         finally{
             if (activityStruct != null) {
                 activityStruct.bufferFlushed(minutes);
             }
         }
-        //activityStruct.activityDataHolderProgress = 0;
     }
 
     private int getMostRecentStep(){
-        //all our data is stored in ActivitySQLite as ActivityData objects
-        return ActivitySQLite.getInstance(context).getMostRecentActivity().getTimestamp();
+        //newest committed timestamp of this band, kept in memory instead of querying the db for every ack
+        return ActivityWatermark.getInstance(context).get(provider);
+    }
+
+    /**
+     * Stores the data of the finished block and acks it once it has been committed,
+     * so the band never gets told to delete data that is not safe yet.
+     * Blocks that have already been stored are only acked.
+     */
+    private void sendAckDataTransfer(final Calendar time, final int bytesTransferred, final boolean skipped) {
+        flushActivityDataHolder(new ActionCallback() {
+            @Override
+            public void onSuccess(Object data) {
+                if (skipped) {
+                    receivedChunks += bytesTransferred / 3;
+                } else if (syncCheckpoint != null) {
+                    syncCheckpoint.commit((int) (time.getTimeInMillis() / 1000), bytesTransferred);
+                }
+                sendAck(time, bytesTransferred);
+            }
+
+            @Override
+            public void onFail(int errorCode, String msg) {
+                final List<BLEAction> list = new ArrayList<>();
+                list.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, Protocol.COMMAND_STOP_SYNC_DATA));
+                queueTask(new BLETask(list, BLETask.Lane.SYNC));
+
+                BTCommandManager.this.onFail(errorCode, "Unable to store activity data: " + msg);
+            }
+        });
     }
 
-    private void sendAckDataTransfer(Calendar time, int bytesTransferred) {
+    private void sendAck(Calendar time, int bytesTransferred) {
         byte[] ackTime = MiBandDateConverter.calendarToRawBytes(time);
 
         byte[] ackChecksum = new byte[]{
@@ -652,23 +963,21 @@ public class BTCommandManager {
 
         final List<BLEAction> list = new ArrayList<>();
         list.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, ack));
-        BLETask task = new BLETask(list);
+        BLETask task = new BLETask(list, BLETask.Lane.SYNC);
 
         try {
             queueTask(task);
-            // flush to the DB after sending the ACK
-            flushActivityDataHolder();
 
             //The last data chunk sent by the miband has always length 0.
             //When we ack this chunk, the transfer is done.
             if (bytesTransferred == 0) {
                 final List<BLEAction> list2 = new ArrayList<>();
-                BLETask task2 = new BLETask(list2);
+                BLETask task2 = new BLETask(list2, BLETask.Lane.SYNC);
                 if (!delete){
                     Log.d(TAG,"!NOT DELETING DATA!");
                     //Do not ACK synchronization (data remains on Device)
                     list2.add(new WriteAction(Profile.UUID_CHAR_CONTROL_POINT, Protocol.COMMAND_STOP_SYNC_DATA));
-                    task2 = new BLETask(list2);
+                    task2 = new BLETask(list2, BLETask.Lane.SYNC);
                 }else{
                     Log.d(TAG, "!DELETING DATA!");
                 }
@@ -677,6 +986,8 @@ public class BTCommandManager {
                     queueTask(task2);
                 }
                 handleActivityFetchFinish();
+                syncStats.finished();
+                Log.d(TAG, "Sync finished: " + syncStats);
                 if (delete){
                     onSuccess("sync complete");
                 }else{
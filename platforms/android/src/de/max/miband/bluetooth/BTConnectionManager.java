@@ -6,7 +6,6 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
@@ -19,11 +18,10 @@ import android.util.Log;
 
 import de.max.miband.ActionCallback;
 import de.max.miband.AppUtils;
-import de.max.miband.model.Profile;
+import de.max.miband.model.MiBandCharacteristic;
 import de.max.miband.model.UserInfo;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
@@ -34,12 +32,14 @@ import java.util.UUID;
 public class BTConnectionManager {
 
     public interface DataRead {
-        public void OnDataRead();
+        /**
+         * Called for each GATT result, with the operation and characteristic it belongs to
+         */
+        public void OnDataRead(BLEAction.Operation operation, UUID characteristic);
     }
 
     //the scanning timeout period
     private static final long SCAN_PERIOD = 45000;
-    private static BTConnectionManager instance;
     private final String TAG = getClass().getSimpleName();
     private Context context;
     private boolean mScanning = false;
@@ -56,6 +56,8 @@ public class BTConnectionManager {
 
     private BTCommandManager io;
     private BluetoothGatt gatt;
+    //resolved once per service discovery
+    private volatile CharacteristicTable characteristicTable = CharacteristicTable.EMPTY;
 
     private boolean realTimeStepsEnabled=false;
     private boolean sensorDataEnabled=false;
@@ -104,14 +106,6 @@ public class BTConnectionManager {
         this.connectionCallback = connectionCallback;
     }
 
-    public synchronized static BTConnectionManager getInstance(Context context, ActionCallback connectionCallback) {
-        if (instance == null) {
-            instance = new BTConnectionManager(context, connectionCallback);
-        }
-
-        return instance;
-    }
-
     public void connect(String address) {
         Log.i(TAG, "trying to connect to "+address);
         mFound = false;
@@ -193,31 +187,17 @@ public class BTConnectionManager {
             return;
         }
 
-        HashMap<UUID, BluetoothGattCharacteristic> mAvailableCharacteristics = null;
-
-        for (BluetoothGattService service : gatt.getServices()) {
-            if (Profile.UUID_SERVICE_MILI.equals(service.getUuid())) {
-                List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-                if (characteristics == null || characteristics.isEmpty()) {
-                    Log.e(TAG, "Supported LE service " + service.getUuid() + "did not return any characteristics");
-                    continue;
-                }
-                mAvailableCharacteristics = new HashMap<>(characteristics.size());
-                for (BluetoothGattCharacteristic characteristic : characteristics) {
-                    mAvailableCharacteristics.put(characteristic.getUuid(), characteristic);
-                }
-            }
-        }
+        final CharacteristicTable table = characteristicTable;
 
         try {
-            if (mAvailableCharacteristics != null && !mAvailableCharacteristics.isEmpty()) {
+            if (!table.isEmpty()) {
 
                 isSyncNotification = enable;
 
                 final List<BLEAction> list1 = new ArrayList<>();
-                list1.add(new NotifyAction(mAvailableCharacteristics.get(Profile.UUID_CHAR_REALTIME_STEPS), false));
-                list1.add(new NotifyAction(mAvailableCharacteristics.get(Profile.UUID_CHAR_SENSOR_DATA), false));
-                list1.add(new NotifyAction(mAvailableCharacteristics.get(Profile.UUID_CHAR_ACTIVITY_DATA), enable));
+                list1.add(notifyAction(table, MiBandCharacteristic.REALTIME_STEPS, false));
+                list1.add(notifyAction(table, MiBandCharacteristic.SENSOR_DATA, false));
+                list1.add(notifyAction(table, MiBandCharacteristic.ACTIVITY_DATA, enable));
 
 
                 final BLETask task1 = new BLETask(list1);
@@ -235,29 +215,15 @@ public class BTConnectionManager {
             return;
         }
         toggleNotifications(enable);
-        HashMap<UUID, BluetoothGattCharacteristic> mAvailableCharacteristics = null;
-
-        for (BluetoothGattService service : gatt.getServices()) {
-            if (Profile.UUID_SERVICE_MILI.equals(service.getUuid())) {
-                List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-                if (characteristics == null || characteristics.isEmpty()) {
-                    Log.e(TAG, "Supported LE service " + service.getUuid() + "did not return any characteristics");
-                    continue;
-                }
-                mAvailableCharacteristics = new HashMap<>(characteristics.size());
-                for (BluetoothGattCharacteristic characteristic : characteristics) {
-                    mAvailableCharacteristics.put(characteristic.getUuid(), characteristic);
-                }
-            }
-        }
+        final CharacteristicTable table = characteristicTable;
 
         try {
-            if (mAvailableCharacteristics != null && !mAvailableCharacteristics.isEmpty()) {
+            if (!table.isEmpty()) {
 
                 isSyncNotification = enable;
 
                 final List<BLEAction> list1 = new ArrayList<>();
-                list1.add(new NotifyAction(mAvailableCharacteristics.get(Profile.UUID_CHAR_NOTIFICATION), enable));
+                list1.add(notifyAction(table, MiBandCharacteristic.NOTIFICATION, enable));
 
                 final BLETask task1 = new BLETask(list1);
                 io.queueTask(task1);
@@ -274,32 +240,18 @@ public class BTConnectionManager {
             return;
         }
         toggleNotifications(enable);
-        HashMap<UUID, BluetoothGattCharacteristic> mAvailableCharacteristics = null;
-
-        for (BluetoothGattService service : gatt.getServices()) {
-            if (Profile.UUID_SERVICE_MILI.equals(service.getUuid())) {
-                List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-                if (characteristics == null || characteristics.isEmpty()) {
-                    Log.e(TAG, "Supported LE service " + service.getUuid() + "did not return any characteristics");
-                    continue;
-                }
-                mAvailableCharacteristics = new HashMap<>(characteristics.size());
-                for (BluetoothGattCharacteristic characteristic : characteristics) {
-                    mAvailableCharacteristics.put(characteristic.getUuid(), characteristic);
-                }
-            }
-        }
+        final CharacteristicTable table = characteristicTable;
 
         try {
-            if (mAvailableCharacteristics != null && !mAvailableCharacteristics.isEmpty()) {
+            if (!table.isEmpty()) {
 
                 isSyncNotification = enable;
 
                 final List<BLEAction> list1 = new ArrayList<>();
-                list1.add(new NotifyAction(mAvailableCharacteristics.get(Profile.UUID_CHAR_REALTIME_STEPS), enable));
-                list1.add(new NotifyAction(mAvailableCharacteristics.get(Profile.UUID_CHAR_SENSOR_DATA), enable));
-                list1.add(new NotifyAction(mAvailableCharacteristics.get(Profile.UUID_CHAR_ACTIVITY_DATA), false));
-                list1.add(new NotifyAction(mAvailableCharacteristics.get(Profile.UUID_CHAR_SENSOR_DATA), enable));
+                list1.add(notifyAction(table, MiBandCharacteristic.REALTIME_STEPS, enable));
+                list1.add(notifyAction(table, MiBandCharacteristic.SENSOR_DATA, enable));
+                list1.add(notifyAction(table, MiBandCharacteristic.ACTIVITY_DATA, false));
+                list1.add(notifyAction(table, MiBandCharacteristic.SENSOR_DATA, enable));
 
 
                 final BLETask task1 = new BLETask(list1);
@@ -310,6 +262,10 @@ public class BTConnectionManager {
         }
     }
 
+    private NotifyAction notifyAction(CharacteristicTable table, MiBandCharacteristic id, boolean enable) {
+        return new NotifyAction(table.get(id), table.getNotifyDescriptor(id), enable);
+    }
+
     /*
     public void disconnect (boolean disconnectGatt){
         if (gatt != null && disconnectGatt) {
@@ -327,9 +283,11 @@ public class BTConnectionManager {
             gatt.close();
             gatt=null;
         }
+        characteristicTable = CharacteristicTable.EMPTY;
         connectionCallback.onFail(-1, "disconnected");
         try{
-            io.getmQueueConsumer().abort();
+            io.shutdown();
+            io.getmQueueConsumer().pause(QueueConsumer.ERROR_DISCONNECTED, "Connection lost");
             if (io.getCurrentSynchCallback()!=null){
                 io.getCurrentSynchCallback().onFail(333,"Connection lost");
             }
@@ -346,29 +304,15 @@ public class BTConnectionManager {
     public void toggleNotifications(boolean enable) {
         if (gatt == null) return;
 
-        HashMap<UUID, BluetoothGattCharacteristic> mAvailableCharacteristics = null;
-
-        for (BluetoothGattService service : gatt.getServices()) {
-            if (Profile.UUID_SERVICE_MILI.equals(service.getUuid())) {
-                List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-                if (characteristics == null || characteristics.isEmpty()) {
-                    Log.e(TAG, "Supported LE service " + service.getUuid() + "did not return any characteristics");
-                    continue;
-                }
-                mAvailableCharacteristics = new HashMap<>(characteristics.size());
-                for (BluetoothGattCharacteristic characteristic : characteristics) {
-                    mAvailableCharacteristics.put(characteristic.getUuid(), characteristic);
-                }
-            }
-        }
+        final CharacteristicTable table = characteristicTable;
 
         try {
-            if (mAvailableCharacteristics != null && !mAvailableCharacteristics.isEmpty()) {
-                gatt.setCharacteristicNotification(mAvailableCharacteristics.get(Profile.UUID_CHAR_NOTIFICATION), enable);
-                gatt.setCharacteristicNotification(mAvailableCharacteristics.get(Profile.UUID_CHAR_REALTIME_STEPS), enable);
-                gatt.setCharacteristicNotification(mAvailableCharacteristics.get(Profile.UUID_CHAR_ACTIVITY_DATA), enable);
-                gatt.setCharacteristicNotification(mAvailableCharacteristics.get(Profile.UUID_CHAR_BATTERY), enable);
-                gatt.setCharacteristicNotification(mAvailableCharacteristics.get(Profile.UUID_CHAR_SENSOR_DATA), enable);
+            if (!table.isEmpty()) {
+                gatt.setCharacteristicNotification(table.get(MiBandCharacteristic.NOTIFICATION), enable);
+                gatt.setCharacteristicNotification(table.get(MiBandCharacteristic.REALTIME_STEPS), enable);
+                gatt.setCharacteristicNotification(table.get(MiBandCharacteristic.ACTIVITY_DATA), enable);
+                gatt.setCharacteristicNotification(table.get(MiBandCharacteristic.BATTERY), enable);
+                gatt.setCharacteristicNotification(table.get(MiBandCharacteristic.SENSOR_DATA), enable);
             }
         } catch (NullPointerException e) {
             e.printStackTrace();
@@ -380,6 +324,11 @@ public class BTConnectionManager {
             gatt.close();
             gatt = null;
         }
+        characteristicTable = CharacteristicTable.EMPTY;
+        if (io != null) {
+            io.shutdown();
+            io.getmQueueConsumer().pause(QueueConsumer.ERROR_DISCONNECTED, "Connection lost");
+        }
 
         isConnected = false;
         isConnecting = false;
@@ -404,6 +353,13 @@ public class BTConnectionManager {
         return gatt;
     }
 
+    /**
+     * @return the characteristics of the current connection, empty while not connected
+     */
+    public CharacteristicTable getCharacteristicTable() {
+        return characteristicTable;
+    }
+
     public void setIo(BTCommandManager io) {
         this.io = io;
         onDataRead = io.getmQueueConsumer();
@@ -445,6 +401,7 @@ public class BTConnectionManager {
 
                 //we set the Gatt instance
                 BTConnectionManager.this.gatt = gatt;
+                characteristicTable = CharacteristicTable.resolve(gatt);
 
                 isConnected = true;
                 isConnecting = false;
@@ -467,7 +424,7 @@ public class BTConnectionManager {
             }
 
             if (onDataRead != null)
-                onDataRead.OnDataRead();
+                onDataRead.OnDataRead(BLEAction.Operation.READ, characteristic.getUuid());
         }
 
         private boolean checkCorrectGattInstance(BluetoothGatt g, String where) {
@@ -498,18 +455,14 @@ public class BTConnectionManager {
                 io.getmQueueConsumer().abort();
             }
 
-            if (characteristic != null && io.getmQueueConsumer().getmWaitCharacteristic() != null && characteristic.getUuid().equals(io.getmQueueConsumer().getmWaitCharacteristic())) {
-                if (onDataRead != null)
-                    onDataRead.OnDataRead();
-            } else {
-                if (io.getmQueueConsumer().getmWaitCharacteristic() != null) {
-                    Log.e(TAG, "checkWaitingCharacteristic: mismatched characteristic received: " + ((characteristic != null && characteristic.getUuid() != null) ? characteristic.getUuid().toString() : "(null)"));
-                }
+            UUID waitCharacteristic = io.getmQueueConsumer().getmWaitCharacteristic();
+            if (waitCharacteristic != null && (characteristic == null || !waitCharacteristic.equals(characteristic.getUuid()))) {
+                Log.e(TAG, "checkWaitingCharacteristic: mismatched characteristic received: " + ((characteristic != null && characteristic.getUuid() != null) ? characteristic.getUuid().toString() : "(null)"));
             }
 
-            if (characteristic != null ) {
-                if (onDataRead != null)
-                    onDataRead.OnDataRead();
+            //the completion of the queue ignores the result if it is not the one it waits for
+            if (characteristic != null && onDataRead != null) {
+                onDataRead.OnDataRead(BLEAction.Operation.DESCRIPTOR, characteristic.getUuid());
             }
         }
 
@@ -529,20 +482,31 @@ public class BTConnectionManager {
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             super.onCharacteristicWrite(gatt, characteristic, status);
 
+            //a write without response has only left the stack, its callback has already been called.
+            //The queue tracks them by the writes it issued, the write type of the shared characteristic
+            //may already have been changed by the next write
+            if (io.getmQueueConsumer().onWriteWithoutResponseSent(characteristic.getUuid())) {
+                if (BluetoothGatt.GATT_SUCCESS != status) {
+                    Log.e(TAG, "write without response to " + characteristic.getUuid() + " failed: " + status);
+                }
+                return;
+            }
+
             //if status is 0, success on sending and received
             //Log.i(TAG, "handleControlPoint got status:" + status);
 
             if (BluetoothGatt.GATT_SUCCESS == status) {
-                if (!characteristic.getUuid().equals(Profile.UUID_CHAR_PAIR)){
+                MiBandCharacteristic id = MiBandCharacteristic.fromUuid(characteristic.getUuid());
+                if (id != MiBandCharacteristic.PAIR){
                     io.onSuccess(characteristic);
                 }
 
 
-                if (characteristic.getUuid().equals(Profile.UUID_CHAR_PAIR)) {
+                if (id == MiBandCharacteristic.PAIR) {
                     io.handlePairResult(characteristic.getValue());
                 }
 
-                if (characteristic.getUuid().equals(Profile.UUID_CHAR_CONTROL_POINT)) {
+                if (id == MiBandCharacteristic.CONTROL_POINT) {
                     io.handleControlPointResult(characteristic.getValue());
                 }
 
@@ -551,7 +515,7 @@ public class BTConnectionManager {
             }
 
             if (onDataRead != null)
-                onDataRead.OnDataRead();
+                onDataRead.OnDataRead(BLEAction.Operation.WRITE, characteristic.getUuid());
         }
 
         @Override
@@ -566,20 +530,14 @@ public class BTConnectionManager {
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            UUID characteristicUUID = characteristic.getUuid();
-            if (Profile.UUID_CHAR_ACTIVITY_DATA.equals(characteristicUUID)) {
-                Log.d(TAG, "ON CHARACTERSI CHANGED!!! - ACTIVITY!! -" + characteristicUUID.toString());
+            //runs on the binder thread, so nothing but the activity data is handled here
+            MiBandCharacteristic id = MiBandCharacteristic.fromUuid(characteristic.getUuid());
+            if (id == MiBandCharacteristic.ACTIVITY_DATA) {
+                //handled inline, the synchronization depends on the order of the chunks and the queued acks
                 io.handleActivityNotif(characteristic.getValue());
+            } else if (id != null) {
+                io.getNotificationDispatcher().publish(id, characteristic.getValue());
             } else {
-                Log.d(TAG, "ON CHARACTERSI CHANGED!!! - NOTIF?!! -" + characteristicUUID.toString());
-                if (io.notifyListeners.containsKey(characteristic.getUuid())) {
-                    io.notifyListeners.get(characteristic.getUuid()).onNotify(characteristic.getValue());
-                }
-
-                if (Profile.UUID_CHAR_NOTIFICATION.equals(characteristicUUID)){
-                    io.handleNotificationNotif(characteristic.getValue());
-                }
-
                 super.onCharacteristicChanged(gatt, characteristic);
             }
         }
@@ -0,0 +1,101 @@
+package de.max.miband.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import de.max.miband.model.MiBandCharacteristic;
+import de.max.miband.model.Profile;
+
+import java.util.UUID;
+
+/**
+ * The characteristics and notification descriptors of the {@link Profile#UUID_SERVICE_MILI} service of one connection,
+ * resolved once after the service discovery and indexed by {@link MiBandCharacteristic}.
+ * The table never changes, a new discovery creates a new table.
+ */
+public final class CharacteristicTable {
+
+    private static final String TAG = CharacteristicTable.class.getSimpleName();
+
+    public static final CharacteristicTable EMPTY = new CharacteristicTable(
+            new BluetoothGattCharacteristic[MiBandCharacteristic.values().length],
+            new BluetoothGattDescriptor[MiBandCharacteristic.values().length], 0);
+
+    private final BluetoothGattCharacteristic[] characteristics;
+    private final BluetoothGattDescriptor[] descriptors;
+    private final int resolved;
+
+    private CharacteristicTable(BluetoothGattCharacteristic[] characteristics, BluetoothGattDescriptor[] descriptors, int resolved) {
+        this.characteristics = characteristics;
+        this.descriptors = descriptors;
+        this.resolved = resolved;
+    }
+
+    /**
+     * Resolves the characteristics of the discovered services of the gatt
+     */
+    public static CharacteristicTable resolve(BluetoothGatt gatt) {
+        if (gatt == null) {
+            return EMPTY;
+        }
+        BluetoothGattService service = gatt.getService(Profile.UUID_SERVICE_MILI);
+        if (service == null) {
+            Log.e(TAG, "service " + Profile.UUID_SERVICE_MILI + " not found");
+            return EMPTY;
+        }
+
+        MiBandCharacteristic[] ids = MiBandCharacteristic.values();
+        BluetoothGattCharacteristic[] characteristics = new BluetoothGattCharacteristic[ids.length];
+        BluetoothGattDescriptor[] descriptors = new BluetoothGattDescriptor[ids.length];
+        int resolved = 0;
+        for (MiBandCharacteristic id : ids) {
+            BluetoothGattCharacteristic characteristic = service.getCharacteristic(id.getUuid());
+            if (characteristic == null) {
+                continue;
+            }
+            characteristics[id.ordinal()] = characteristic;
+            descriptors[id.ordinal()] = characteristic.getDescriptor(Profile.UUID_DESCRIPTOR_UPDATE_NOTIFICATION);
+            resolved++;
+        }
+
+        Log.d(TAG, "resolved " + resolved + " of " + ids.length + " characteristic(s)");
+        return new CharacteristicTable(characteristics, descriptors, resolved);
+    }
+
+    /**
+     * @return the characteristic, or null if the band does not have it
+     */
+    public BluetoothGattCharacteristic get(MiBandCharacteristic id) {
+        return characteristics[id.ordinal()];
+    }
+
+    /**
+     * @return the characteristic with the given uuid, or null if it is not part of the table
+     */
+    public BluetoothGattCharacteristic get(UUID uuid) {
+        MiBandCharacteristic id = MiBandCharacteristic.fromUuid(uuid);
+        return id != null ? characteristics[id.ordinal()] : null;
+    }
+
+    /**
+     * @return the client characteristic configuration descriptor, or null if the characteristic has none
+     */
+    public BluetoothGattDescriptor getNotifyDescriptor(MiBandCharacteristic id) {
+        return descriptors[id.ordinal()];
+    }
+
+    /**
+     * @return true if the characteristic accepts writes without response
+     */
+    public boolean supportsWriteWithoutResponse(UUID uuid) {
+        BluetoothGattCharacteristic characteristic = get(uuid);
+        return characteristic != null && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+    }
+
+    public boolean isEmpty() {
+        return resolved == 0;
+    }
+}
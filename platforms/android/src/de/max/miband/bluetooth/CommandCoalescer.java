@@ -0,0 +1,268 @@
+package de.max.miband.bluetooth;
+
+import de.max.miband.ActionCallback;
+import de.max.miband.model.Profile;
+import de.max.miband.model.Protocol;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Drops redundant commands before they reach the {@link QueueConsumer}.
+ * <ul>
+ * <li>{@link Mode#STATE}: a write of the value which the band has acknowledged last is skipped and
+ * a pending write is replaced by a newer one (e.g. the LE params)</li>
+ * <li>{@link Mode#LATEST}: a pending write is replaced by a newer one (e.g. the LED color)</li>
+ * <li>a {@link NotifyAction} is only kept once per characteristic in a task, the last one wins</li>
+ * </ul>
+ * Only tasks consisting of a single write are skipped or replaced, and only before they have started.
+ * The written values are learned from the STATE writes of all tasks, e.g. the LE params of the handshake.
+ */
+public class CommandCoalescer {
+
+    public static final int ANY_OPCODE = -1;
+
+    public enum Mode {
+        STATE,
+        LATEST
+    }
+
+    private static class Rule {
+        final UUID characteristic;
+        final int opcode;
+        final Mode mode;
+
+        Rule(UUID characteristic, int opcode, Mode mode) {
+            this.characteristic = characteristic;
+            this.opcode = opcode;
+            this.mode = mode;
+        }
+
+        boolean matches(WriteAction write) {
+            if (write.getService() != null || !characteristic.equals(write.getCharacteristic())) {
+                return false;
+            }
+            byte[] payload = write.getPayload();
+            return opcode == ANY_OPCODE || (payload != null && payload.length > 0 && payload[0] == opcode);
+        }
+    }
+
+    private static class Written {
+        final byte[] payload;
+        //what the callback of the write received, skipped writes report it as well
+        final Object result;
+
+        Written(byte[] payload, Object result) {
+            this.payload = payload;
+            this.result = result;
+        }
+    }
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+    //the last acknowledged value of each STATE rule
+    private final HashMap<Rule, Written> values = new HashMap<Rule, Written>();
+    //the queued STATE writes which have not been acknowledged yet
+    private final HashSet<WriteAction> queuedWrites = new HashSet<WriteAction>();
+
+    private long savedOperations;
+    private long supersededTasks;
+
+    public CommandCoalescer() {
+        addRule(Profile.UUID_CHAR_LE_PARAMS, ANY_OPCODE, Mode.STATE);
+        addRule(Profile.UUID_CHAR_CONTROL_POINT, Protocol.COMMAND_SET_COLOR_THEME, Mode.LATEST);
+    }
+
+    /**
+     * Adds a rule for single writes to the characteristic
+     *
+     * @param opcode : the first payload byte the rule applies to, or {@link #ANY_OPCODE}
+     */
+    public synchronized void addRule(UUID characteristic, int opcode, Mode mode) {
+        rules.add(new Rule(characteristic, opcode, mode));
+    }
+
+    public synchronized void clearRules() {
+        rules.clear();
+        values.clear();
+        queuedWrites.clear();
+    }
+
+    /**
+     * @return the number of GATT operations which have not been run
+     */
+    public synchronized long getSavedOperations() {
+        return savedOperations;
+    }
+
+    public synchronized long getSupersededTasks() {
+        return supersededTasks;
+    }
+
+    /**
+     * Removes the redundant actions of the task and the pending tasks it replaces.
+     * Must be called while the lanes can not change.
+     *
+     * @param lanes      : the pending tasks
+     * @param superseded : receives the removed pending tasks, their callbacks have to be failed
+     * @return false if nothing of the task is left to run
+     */
+    synchronized boolean coalesce(BLETask task, ArrayDeque<BLETask>[] lanes, List<BLETask> superseded) {
+        List<BLEAction> actions = task.getActions();
+        dedupeNotifyActions(actions);
+
+        Rule rule = getRule(task);
+        if (rule != null) {
+            if (rule.mode == Mode.STATE && isWritten(rule, ((WriteAction) actions.get(0)).getPayload())) {
+                savedOperations++;
+                return false;
+            }
+
+            for (ArrayDeque<BLETask> lane : lanes) {
+                Iterator<BLETask> iterator = lane.iterator();
+                while (iterator.hasNext()) {
+                    BLETask pending = iterator.next();
+                    if (pending.getPosition() == 0 && getRule(pending) == rule) {
+                        iterator.remove();
+                        superseded.add(pending);
+                        supersededTasks++;
+                        savedOperations++;
+                    }
+                }
+            }
+        }
+
+        trackStateWrites(actions);
+        return !actions.isEmpty();
+    }
+
+    /**
+     * @return what the last acknowledged write of the value of the skipped task received, to
+     * report to the callbacks of the task
+     */
+    synchronized Object getWrittenResult(BLETask task) {
+        Rule rule = getRule(task);
+        Written written = rule != null ? values.get(rule) : null;
+        return written != null ? written.result : null;
+    }
+
+    /**
+     * Stops waiting for the writes of the task which have not run, e.g. because it has been aborted
+     */
+    synchronized void release(BLETask task) {
+        queuedWrites.removeAll(task.getActions());
+    }
+
+    /**
+     * Forgets the written value of the action, e.g. because the write failed
+     */
+    synchronized void forget(BLEAction action) {
+        if (action instanceof WriteAction) {
+            queuedWrites.remove(action);
+            for (Rule rule : rules) {
+                if (rule.matches((WriteAction) action)) {
+                    values.remove(rule);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets all written values, the band may not have kept them, e.g. after a reconnection
+     */
+    synchronized void forgetValues() {
+        values.clear();
+    }
+
+    private boolean isWritten(Rule rule, byte[] payload) {
+        Written written = values.get(rule);
+        if (written == null || !Arrays.equals(written.payload, payload)) {
+            return false;
+        }
+        //a queued write of another value would change it again
+        for (WriteAction write : queuedWrites) {
+            if (rule.matches(write)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the value of each STATE write of the task once the band has acknowledged it
+     */
+    private void trackStateWrites(List<BLEAction> actions) {
+        for (BLEAction action : actions) {
+            if (!(action instanceof WriteAction) || queuedWrites.contains(action)) {
+                continue;
+            }
+            final WriteAction write = (WriteAction) action;
+            final Rule rule = getRule(write);
+            if (rule == null || rule.mode != Mode.STATE) {
+                continue;
+            }
+
+            queuedWrites.add(write);
+            final ActionCallback callback = write.getCallback();
+            write.setCallback(new ActionCallback() {
+                @Override
+                public void onSuccess(Object data) {
+                    synchronized (CommandCoalescer.this) {
+                        queuedWrites.remove(write);
+                        values.put(rule, new Written(write.getPayload(), data));
+                    }
+                    if (callback != null) {
+                        callback.onSuccess(data);
+                    }
+                }
+
+                @Override
+                public void onFail(int errorCode, String msg) {
+                    forget(write);
+                    if (callback != null) {
+                        callback.onFail(errorCode, msg);
+                    }
+                }
+            });
+        }
+    }
+
+    private Rule getRule(BLETask task) {
+        List<BLEAction> actions = task.getActions();
+        if (actions.size() != 1 || !(actions.get(0) instanceof WriteAction)) {
+            return null;
+        }
+        return getRule((WriteAction) actions.get(0));
+    }
+
+    private Rule getRule(WriteAction write) {
+        for (Rule rule : rules) {
+            if (rule.matches(write)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    private void dedupeNotifyActions(List<BLEAction> actions) {
+        HashSet<UUID> seen = null;
+        for (int i = actions.size() - 1; i >= 0; i--) {
+            BLEAction action = actions.get(i);
+            if (!(action instanceof NotifyAction)) {
+                continue;
+            }
+            if (seen == null) {
+                seen = new HashSet<UUID>();
+            }
+            if (!seen.add(action.getCharacteristic())) {
+                actions.remove(i);
+                savedOperations++;
+            }
+        }
+    }
+}
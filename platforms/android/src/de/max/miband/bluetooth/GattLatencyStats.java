@@ -0,0 +1,89 @@
+package de.max.miband.bluetooth;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Histogram of the GATT round trip times per characteristic, measured from running an action
+ * until its result arrived. Bucket i counts round trips below {@link #BUCKET_BASE_MS} * 2^i ms,
+ * the last bucket counts everything slower.
+ */
+public class GattLatencyStats {
+
+    private static final int BUCKET_BASE_MS = 8;
+    //8, 16, 32, ... 4096 ms and slower
+    private static final int BUCKETS = 11;
+
+    private static class Histogram {
+        final long[] buckets = new long[BUCKETS];
+        long count;
+        long totalMs;
+        long maxMs;
+        long timeouts;
+    }
+
+    private final Map<UUID, Histogram> histograms = new HashMap<UUID, Histogram>();
+
+    public synchronized void record(UUID characteristic, long elapsedMs) {
+        Histogram histogram = get(characteristic);
+        histogram.buckets[getBucket(elapsedMs)]++;
+        histogram.count++;
+        histogram.totalMs += elapsedMs;
+        histogram.maxMs = Math.max(histogram.maxMs, elapsedMs);
+    }
+
+    public synchronized void timeout(UUID characteristic) {
+        get(characteristic).timeouts++;
+    }
+
+    public synchronized void reset() {
+        histograms.clear();
+    }
+
+    private Histogram get(UUID characteristic) {
+        Histogram histogram = histograms.get(characteristic);
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms.put(characteristic, histogram);
+        }
+        return histogram;
+    }
+
+    private static int getBucket(long elapsedMs) {
+        int bucket = 0;
+        long limit = BUCKET_BASE_MS;
+        while (bucket < BUCKETS - 1 && elapsedMs >= limit) {
+            bucket++;
+            limit <<= 1;
+        }
+        return bucket;
+    }
+
+    public synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<UUID, Histogram> entry : histograms.entrySet()) {
+                Histogram histogram = entry.getValue();
+                JSONObject stats = new JSONObject();
+                JSONArray buckets = new JSONArray();
+                for (long bucket : histogram.buckets) {
+                    buckets.put(bucket);
+                }
+                stats.put("buckets", buckets);
+                stats.put("count", histogram.count);
+                stats.put("averageMs", histogram.count == 0 ? 0 : histogram.totalMs / histogram.count);
+                stats.put("maxMs", histogram.maxMs);
+                stats.put("timeouts", histogram.timeouts);
+                json.put(entry.getKey() == null ? "none" : entry.getKey().toString(), stats);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+}
@@ -0,0 +1,225 @@
+package de.max.miband.bluetooth;
+
+import android.util.Log;
+
+import de.max.miband.NotifyListener;
+import de.max.miband.model.MiBandCharacteristic;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers the notifications of the band off the bluetooth binder thread.
+ * The gatt callback only copies the value into a preallocated ring and returns, a dispatcher thread
+ * hands the values to the subscribers of the characteristic.
+ * The ring has a single producer (gatt callbacks are delivered one at a time) and a single consumer,
+ * so it needs no locks. If the subscribers fall behind, new values are dropped and counted.
+ */
+public class NotificationDispatcher implements Runnable {
+
+    private static final String TAG = NotificationDispatcher.class.getSimpleName();
+
+    //a power of two, about 5 seconds of sensor data
+    public static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+    //the default ATT payload, the MTU of the band is never raised
+    public static final int MAX_VALUE_LENGTH = 20;
+    //safety net in case a wakeup gets lost
+    private static final long PARK_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final NotifyListener[] NO_SUBSCRIBERS = new NotifyListener[0];
+
+    private final byte[] values = new byte[CAPACITY * MAX_VALUE_LENGTH];
+    private final int[] lengths = new int[CAPACITY];
+    private final byte[] characteristics = new byte[CAPACITY];
+    private final long[] receivedAt = new long[CAPACITY];
+
+    //next slot to write, only written by the producer
+    private volatile long head;
+    //next slot to read, only written by the dispatcher
+    private volatile long tail;
+    private volatile boolean parked;
+    private volatile boolean running = true;
+    //the thread running the dispatcher, to wake it up
+    private volatile Thread thread;
+
+    //copy on write, indexed by MiBandCharacteristic
+    private volatile NotifyListener[][] subscribers;
+
+    //written by the producer only
+    private volatile long published;
+    private volatile long dropped;
+    private volatile long oversized;
+    //written by the dispatcher only
+    private volatile long delivered;
+    private volatile long totalLatencyNs;
+    private volatile long maxLatencyNs;
+
+    public NotificationDispatcher() {
+        NotifyListener[][] table = new NotifyListener[MiBandCharacteristic.values().length][];
+        Arrays.fill(table, NO_SUBSCRIBERS);
+        subscribers = table;
+    }
+
+    /**
+     * Runs the dispatcher on the executor, it occupies one of its threads until {@link #shutdown()}
+     */
+    public void start(Executor executor) {
+        executor.execute(this);
+    }
+
+    /**
+     * Stops the dispatcher thread, values which have not been delivered yet are discarded
+     */
+    public void shutdown() {
+        running = false;
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    public synchronized void subscribe(MiBandCharacteristic id, NotifyListener listener) {
+        NotifyListener[][] table = subscribers.clone();
+        NotifyListener[] current = table[id.ordinal()];
+        NotifyListener[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = listener;
+        table[id.ordinal()] = updated;
+        subscribers = table;
+    }
+
+    public synchronized void unsubscribe(MiBandCharacteristic id, NotifyListener listener) {
+        NotifyListener[] current = subscribers[id.ordinal()];
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                NotifyListener[] updated = new NotifyListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                NotifyListener[][] table = subscribers.clone();
+                table[id.ordinal()] = updated;
+                subscribers = table;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the value into the ring, called on the binder thread
+     *
+     * @return false if the value was dropped
+     */
+    public boolean publish(MiBandCharacteristic id, byte[] value) {
+        if (value == null) {
+            return false;
+        }
+        if (value.length > MAX_VALUE_LENGTH) {
+            oversized++;
+            return false;
+        }
+
+        long h = head;
+        if (h - tail >= CAPACITY) {
+            dropped++;
+            return false;
+        }
+
+        int slot = (int) (h & MASK);
+        System.arraycopy(value, 0, values, slot * MAX_VALUE_LENGTH, value.length);
+        lengths[slot] = value.length;
+        characteristics[slot] = (byte) id.ordinal();
+        receivedAt[slot] = System.nanoTime();
+        //the volatile write makes the slot visible to the dispatcher
+        head = h + 1;
+        published++;
+
+        Thread t = thread;
+        if (parked && t != null) {
+            LockSupport.unpark(t);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        MiBandCharacteristic[] ids = MiBandCharacteristic.values();
+        while (running) {
+            long t = tail;
+            if (t == head) {
+                parked = true;
+                //check again, the producer may have published before it saw the flag
+                if (t == head && running) {
+                    LockSupport.parkNanos(this, PARK_TIMEOUT_NS);
+                }
+                parked = false;
+                continue;
+            }
+
+            int slot = (int) (t & MASK);
+            byte[] value = Arrays.copyOfRange(values, slot * MAX_VALUE_LENGTH, slot * MAX_VALUE_LENGTH + lengths[slot]);
+            MiBandCharacteristic id = ids[characteristics[slot]];
+            long received = receivedAt[slot];
+            //the slot can be reused as soon as it has been copied
+            tail = t + 1;
+
+            for (NotifyListener listener : subscribers[id.ordinal()]) {
+                try {
+                    listener.onNotify(value);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "subscriber of " + id + " failed", e);
+                }
+            }
+
+            long latency = System.nanoTime() - received;
+            delivered++;
+            totalLatencyNs += latency;
+            if (latency > maxLatencyNs) {
+                maxLatencyNs = latency;
+            }
+        }
+        thread = null;
+        Log.d(TAG, "stopped after " + delivered + " notification(s), dropped " + dropped);
+    }
+
+    public long getPublished() {
+        return published;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getOversized() {
+        return oversized;
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+
+    public int getPending() {
+        return (int) (head - tail);
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            long count = delivered;
+            json.put("published", published);
+            json.put("delivered", count);
+            json.put("dropped", dropped);
+            json.put("oversized", oversized);
+            json.put("pending", getPending());
+            json.put("averageLatencyUs", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatencyNs / count));
+            json.put("maxLatencyUs", TimeUnit.NANOSECONDS.toMicros(maxLatencyNs));
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+}
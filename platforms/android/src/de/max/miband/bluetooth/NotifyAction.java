@@ -18,12 +18,26 @@ public class NotifyAction implements BLEAction {
     private boolean hasWrittenDescriptor = false;
     private final String TAG = getClass().getSimpleName();
     private BluetoothGattCharacteristic characteristic;
+    private BluetoothGattDescriptor descriptor;
 
     public NotifyAction(BluetoothGattCharacteristic characteristic, boolean enable) {
         this.characteristic=characteristic;
         enableFlag = enable;
     }
 
+    /**
+     * @param descriptor the already resolved client characteristic configuration descriptor of the characteristic
+     */
+    public NotifyAction(BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor, boolean enable) {
+        this(characteristic, enable);
+        this.descriptor = descriptor;
+    }
+
+
+    @Override
+    public Operation getOperation() {
+        return Operation.DESCRIPTOR;
+    }
 
     @Override
     public boolean expectsResult() {
@@ -32,14 +46,24 @@ public class NotifyAction implements BLEAction {
 
 
     public UUID getCharacteristic() {
-            return characteristic.getUuid();
+            return characteristic != null ? characteristic.getUuid() : null;
+    }
+
+    @Override
+    public long getTimeout() {
+        return DEFAULT_TIMEOUT_MS;
+    }
+
+    @Override
+    public int getRetries() {
+        return 1;
     }
 
     @Override
     public boolean run(BTCommandManager btCommandManager) {
         boolean result = btCommandManager.gatt.setCharacteristicNotification(characteristic, enableFlag);
         if (result) {
-            BluetoothGattDescriptor notifyDescriptor = characteristic.getDescriptor(UUID_DESCRIPTOR_GATT_CLIENT_CHARACTERISTIC_CONFIGURATION);
+            BluetoothGattDescriptor notifyDescriptor = descriptor != null ? descriptor : characteristic.getDescriptor(UUID_DESCRIPTOR_GATT_CLIENT_CHARACTERISTIC_CONFIGURATION);
             if (notifyDescriptor != null) {
                 int properties = characteristic.getProperties();
                 if ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
@@ -1,24 +1,89 @@
 package de.max.miband.bluetooth;
 
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
+import de.max.miband.ActionCallback;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Created by Lewis on 10/01/15.
+ *
+ * Runs the queued {@link BLETask}s one action at a time. Tasks are queued in one lane per
+ * {@link BLETask.Lane}. Between two actions the highest non-empty lane is served, so a running
+ * task of a lower lane is put back (and resumed later) when a task of a higher lane arrives.
+ * A background task which has been waiting for more than {@link #BACKGROUND_MAX_WAIT_MS}
+ * is served next and is not preempted anymore, even if it has been preempted before.
+ * An action whose result does not arrive within {@link BLEAction#getTimeout()} is run again
+ * up to {@link BLEAction#getRetries()} times, after that its callback fails and the task is aborted.
+ * A {@link WaitAction} does not block the consumer, the task is parked until the wait is over
+ * and other tasks use the link meanwhile. Until such a pattern has finished, tasks which send the
+ * same commands (characteristic and opcode) wait, so they are neither overwritten by the rest of
+ * the pattern nor interleaved with it.
+ * Writes marked with {@link WriteAction#setWithoutResponse(boolean)} are sent without waiting for
+ * the band, as long as fewer than {@link #UNACKED_WRITE_WINDOW} of them have not been handed to the
+ * radio yet. Every {@link #BARRIER_INTERVAL}th such write is sent acknowledged, so the band
+ * has confirmed all earlier ones (GATT keeps the order) before we go on.
+ * Redundant tasks are dropped by the {@link CommandCoalescer} when they are added.
+ * The consumer outlives the connections of its band: it is paused on a disconnect, which fails
+ * the pending tasks with {@link #ERROR_DISCONNECTED}, and resumed with the {@link BTCommandManager}
+ * of the next connection. Tasks added while paused run after the resume.
  */
 public class QueueConsumer implements Runnable, BTConnectionManager.DataRead {
     private String TAG = this.getClass().getSimpleName();
 
-    private BTCommandManager bleCommandManager;
+    //how long a background task may be passed over by the other lanes
+    private static final long BACKGROUND_MAX_WAIT_MS = 3000;
+
+    private static final BLETask.Lane[] LANES = BLETask.Lane.values();
+
+    public static final int ERROR_DISCONNECTED = 333;
+    public static final int ERROR_TIMEOUT = 336;
+    public static final int ERROR_SUPERSEDED = 337;
+
+    //writes without response which may be pending in the bluetooth stack at the same time. The stack
+    //runs one GATT operation at a time and rejects the next write while one is pending, so in practice
+    //this bounds the writes handed over before their callbacks arrive rather than the writes on the air
+    private static final int UNACKED_WRITE_WINDOW = 4;
+    //after this many writes without response the next one is acknowledged
+    private static final int BARRIER_INTERVAL = 8;
+    private static final long CREDIT_TIMEOUT_MS = 1000;
+    //a write without response whose callback has not arrived by then is considered lost
+    private static final long UNACKED_WRITE_EXPIRY_MS = BLEAction.DEFAULT_TIMEOUT_MS;
+
+    private volatile BTCommandManager bleCommandManager;
     private Context context;
     private volatile boolean mAbortTransaction;
-    private final LinkedBlockingQueue<BLETask> queue;
+    private volatile boolean stopped;
+    //no connection, tasks wait for the next resume
+    private volatile boolean paused;
+
+    private final ArrayDeque<BLETask>[] lanes;
+    //tasks in a WaitAction, guarded by lanes
+    private final ArrayList<BLETask> parked = new ArrayList<BLETask>();
+
+    //per lane metrics, guarded by lanes
+    private final long[] servedTasks = new long[LANES.length];
+    private final long[] totalWaitMs = new long[LANES.length];
+    private final long[] maxWaitMs = new long[LANES.length];
+    private final long[] preemptions = new long[LANES.length];
+    private long starvedTasks;
+    private long pauses;
+    private long resumes;
+    private long failedOnDisconnect;
+
+    //the running task may not be preempted, it has been waiting long enough
+    private boolean runningStarved;
+    //the task between take() and the next take(), guarded by lanes
+    private BLETask runningTask;
 
     public UUID getmWaitCharacteristic() {
         return mWaitCharacteristic;
@@ -26,65 +91,488 @@ public class QueueConsumer implements Runnable, BTConnectionManager.DataRead {
 
     private UUID mWaitCharacteristic;
 
-    private CountDownLatch mWaitForActionResultLatch;
+    private final ActionCompletion completion = new ActionCompletion();
+    private final GattLatencyStats latencyStats = new GattLatencyStats();
+    private final CommandCoalescer coalescer = new CommandCoalescer();
 
+    private static class UnackedWrite {
+        final UUID characteristic;
+        final long sentAt = SystemClock.elapsedRealtime();
+
+        UnackedWrite(UUID characteristic) {
+            this.characteristic = characteristic;
+        }
+    }
+
+    //the writes without response handed to the stack whose callback has not arrived yet, oldest
+    //first, as the stack calls back in order. Guarded by credits
+    private final Object credits = new Object();
+    private final ArrayDeque<UnackedWrite> unackedWrites = new ArrayDeque<UnackedWrite>();
+    //only used by the consumer thread
+    private int unackedSinceBarrier;
+    private volatile long writesWithoutResponse;
+    private volatile long barrierWrites;
+
+    /**
+     * @param bleCommandManager the current connection, or null to start paused
+     */
+    @SuppressWarnings("unchecked")
     public QueueConsumer(Context context, final BTCommandManager bleCommandManager) {
         this.context = context;
         this.bleCommandManager = bleCommandManager;
-        this.queue = new LinkedBlockingQueue<>();
+        this.paused = bleCommandManager == null;
+        this.lanes = new ArrayDeque[LANES.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<BLETask>();
+        }
     }
 
     public void add(final BLETask task) {
-        queue.add(task);
+        List<BLETask> superseded = new ArrayList<BLETask>(0);
+        boolean queued;
+        Object writtenResult = null;
+        synchronized (lanes) {
+            queued = coalescer.coalesce(task, lanes, superseded);
+            if (!queued) {
+                writtenResult = coalescer.getWrittenResult(task);
+            } else {
+                task.markEnqueued();
+                lanes[task.getLane().ordinal()].addLast(task);
+                lanes.notifyAll();
+            }
+        }
+
+        //callbacks run outside of the lock, they may queue new tasks
+        if (!queued) {
+            Log.d(TAG, "skipping redundant task");
+            for (BLEAction action : task.getActions()) {
+                if (action instanceof WriteAction && ((WriteAction) action).getCallback() != null) {
+                    //the same result as the write which has set the value
+                    ((WriteAction) action).getCallback().onSuccess(writtenResult);
+                }
+            }
+        }
+        for (BLETask pending : superseded) {
+            Log.d(TAG, "pending task superseded by a newer one");
+            for (BLEAction action : pending.getActions()) {
+                if (action instanceof WriteAction && ((WriteAction) action).getCallback() != null) {
+                    ((WriteAction) action).getCallback().onFail(ERROR_SUPERSEDED, "Superseded by a newer command");
+                }
+            }
+        }
+    }
+
+    public CommandCoalescer getCoalescer() {
+        return coalescer;
     }
 
     public void abort(){
         mAbortTransaction = true;
+        //do not wait for a result which will never arrive
+        completion.cancel();
+    }
+
+    /**
+     * Stops serving tasks until {@link #resume(BTCommandManager)}, e.g. because the band disconnected.
+     * The running action is aborted and the pending tasks fail with the given error.
+     */
+    public void pause(int errorCode, String msg) {
+        List<BLETask> failed = new ArrayList<BLETask>();
+        synchronized (lanes) {
+            if (paused) {
+                return;
+            }
+            paused = true;
+            pauses++;
+            for (ArrayDeque<BLETask> lane : lanes) {
+                failed.addAll(lane);
+                lane.clear();
+            }
+            failed.addAll(parked);
+            parked.clear();
+            failedOnDisconnect += failed.size();
+        }
+
+        abort();
+        //the band may have lost the written state
+        coalescer.forgetValues();
+        //the sent callbacks of the pending writes will not arrive anymore
+        synchronized (credits) {
+            unackedWrites.clear();
+            credits.notifyAll();
+        }
+
+        Log.d(TAG, "paused, failing " + failed.size() + " pending task(s)");
+        for (BLETask task : failed) {
+            failRemainingActions(task, errorCode, msg);
+        }
+    }
+
+    /**
+     * Serves the tasks again over the given connection
+     */
+    public void resume(BTCommandManager bleCommandManager) {
+        synchronized (lanes) {
+            this.bleCommandManager = bleCommandManager;
+            if (paused) {
+                paused = false;
+                resumes++;
+            }
+            lanes.notifyAll();
+        }
+        Log.d(TAG, "resumed");
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Ends the consumer once the running action is over, e.g. because the band is not used anymore
+     */
+    public void stop() {
+        stopped = true;
+        abort();
+        synchronized (lanes) {
+            lanes.notifyAll();
+        }
     }
 
     public void clear(){
-        queue.clear();
+        synchronized (lanes) {
+            for (ArrayDeque<BLETask> lane : lanes) {
+                for (BLETask task : lane) {
+                    coalescer.release(task);
+                }
+                lane.clear();
+            }
+            for (BLETask task : parked) {
+                coalescer.release(task);
+            }
+            parked.clear();
+        }
+    }
+
+    public boolean isEmpty() {
+        synchronized (lanes) {
+            return !hasRunnableTask() && parked.isEmpty();
+        }
+    }
+
+    private boolean hasRunnableTask() {
+        for (ArrayDeque<BLETask> lane : lanes) {
+            if (!lane.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getQueueDepth(BLETask.Lane lane) {
+        synchronized (lanes) {
+            return lanes[lane.ordinal()].size();
+        }
+    }
+
+    /**
+     * @return the average time in ms the tasks of the lane waited before their first action ran
+     */
+    public long getAverageWaitMs(BLETask.Lane lane) {
+        synchronized (lanes) {
+            int i = lane.ordinal();
+            return servedTasks[i] == 0 ? 0 : totalWaitMs[i] / servedTasks[i];
+        }
+    }
+
+    public long getMaxWaitMs(BLETask.Lane lane) {
+        synchronized (lanes) {
+            return maxWaitMs[lane.ordinal()];
+        }
+    }
+
+    public GattLatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    public JSONObject getLaneStats() {
+        JSONObject json = new JSONObject();
+        synchronized (lanes) {
+            try {
+                for (BLETask.Lane lane : LANES) {
+                    int i = lane.ordinal();
+                    JSONObject stats = new JSONObject();
+                    stats.put("depth", lanes[i].size());
+                    stats.put("served", servedTasks[i]);
+                    stats.put("averageWaitMs", servedTasks[i] == 0 ? 0 : totalWaitMs[i] / servedTasks[i]);
+                    stats.put("maxWaitMs", maxWaitMs[i]);
+                    stats.put("preemptions", preemptions[i]);
+                    json.put(lane.name().toLowerCase(), stats);
+                }
+                json.put("paused", paused);
+                json.put("pauses", pauses);
+                json.put("resumes", resumes);
+                json.put("failedOnDisconnect", failedOnDisconnect);
+                json.put("starvedTasks", starvedTasks);
+                json.put("parkedTasks", parked.size());
+                json.put("writesWithoutResponse", writesWithoutResponse);
+                json.put("barrierWrites", barrierWrites);
+                json.put("savedOperations", coalescer.getSavedOperations());
+                json.put("supersededTasks", coalescer.getSupersededTasks());
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+        return json;
+    }
+
+    /**
+     * Waits for the next task to run
+     *
+     * @return the task, or null if the consumer has been stopped
+     */
+    private BLETask take() throws InterruptedException {
+        synchronized (lanes) {
+            runningTask = null;
+            while (true) {
+                if (stopped) {
+                    return null;
+                }
+                if (paused) {
+                    lanes.wait();
+                    continue;
+                }
+                long nextResume = resumeParkedTasks();
+                if (hasTaskAbove(null)) {
+                    break;
+                }
+                if (nextResume == 0) {
+                    lanes.wait();
+                } else {
+                    lanes.wait(Math.max(1, nextResume - SystemClock.elapsedRealtime()));
+                }
+            }
+
+            BLETask task;
+            ArrayDeque<BLETask> background = lanes[BLETask.Lane.BACKGROUND.ordinal()];
+            BLETask oldestBackground = peekRunnable(background);
+            //a preempted task counts from when it was queued and resumes from its position
+            if (oldestBackground != null
+                    && SystemClock.elapsedRealtime() - oldestBackground.getEnqueuedAt() > BACKGROUND_MAX_WAIT_MS
+                    && hasTaskAbove(BLETask.Lane.BACKGROUND)) {
+                task = oldestBackground;
+                background.remove(task);
+                runningStarved = true;
+                starvedTasks++;
+                Log.d(TAG, "serving starved background task");
+            } else {
+                task = null;
+                for (ArrayDeque<BLETask> lane : lanes) {
+                    task = peekRunnable(lane);
+                    if (task != null) {
+                        lane.remove(task);
+                        break;
+                    }
+                }
+                runningStarved = false;
+            }
+
+            runningTask = task;
+
+            //a resumed task has already been counted
+            if (task.getPosition() == 0) {
+                int i = task.getLane().ordinal();
+                long waited = SystemClock.elapsedRealtime() - task.getEnqueuedAt();
+                servedTasks[i]++;
+                totalWaitMs[i] += waited;
+                maxWaitMs[i] = Math.max(maxWaitMs[i], waited);
+            }
+            return task;
+        }
+    }
+
+    /**
+     * Parks the task until the given duration is over, it is resumed by {@link #take()}
+     */
+    private void park(BLETask task, long duration) {
+        synchronized (lanes) {
+            task.setResumeAt(SystemClock.elapsedRealtime() + duration);
+            parked.add(task);
+        }
+    }
+
+    /**
+     * Puts every parked task whose wait is over back in front of its lane
+     *
+     * @return the time the next parked task is due, 0 if there is none
+     */
+    private long resumeParkedTasks() {
+        long now = SystemClock.elapsedRealtime();
+        long nextResume = 0;
+        for (int i = parked.size() - 1; i >= 0; i--) {
+            BLETask task = parked.get(i);
+            if (task.getResumeAt() <= now) {
+                parked.remove(i);
+                lanes[task.getLane().ordinal()].addFirst(task);
+            } else if (nextResume == 0 || task.getResumeAt() < nextResume) {
+                nextResume = task.getResumeAt();
+            }
+        }
+        return nextResume;
+    }
+
+    /**
+     * @param lane : the lane, or null for all lanes
+     * @return true if a lane above the given one has a task which may run now
+     */
+    private boolean hasTaskAbove(BLETask.Lane lane) {
+        int end = lane != null ? lane.ordinal() : lanes.length;
+        for (int i = 0; i < end; i++) {
+            if (peekRunnable(lanes[i]) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the first task of the lane which is not waiting for a pattern, or null
+     */
+    private BLETask peekRunnable(ArrayDeque<BLETask> lane) {
+        for (BLETask task : lane) {
+            if (!isWaitingForPattern(task)) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if the task sends a command of a pattern which has started but not finished yet,
+     * i.e. which is running, parked or has been preempted. A started task never waits.
+     */
+    private boolean isWaitingForPattern(BLETask task) {
+        if (task.getPosition() > 0) {
+            return false;
+        }
+        if (runningTask != null && runningTask.isPattern() && sendsSameCommand(runningTask, task)) {
+            return true;
+        }
+        for (BLETask pattern : parked) {
+            if (sendsSameCommand(pattern, task)) {
+                return true;
+            }
+        }
+        for (ArrayDeque<BLETask> lane : lanes) {
+            for (BLETask pattern : lane) {
+                if (pattern.getPosition() > 0 && pattern.isPattern() && sendsSameCommand(pattern, task)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean sendsSameCommand(BLETask a, BLETask b) {
+        for (BLEAction actionA : a.getActions()) {
+            if (!(actionA instanceof WriteAction)) {
+                continue;
+            }
+            for (BLEAction actionB : b.getActions()) {
+                if (actionB instanceof WriteAction && isSameCommand((WriteAction) actionA, (WriteAction) actionB)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    //same characteristic and the same opcode, i.e. the first byte of the payload
+    private static boolean isSameCommand(WriteAction a, WriteAction b) {
+        if (!a.getCharacteristic().equals(b.getCharacteristic())) {
+            return false;
+        }
+        byte[] payloadA = a.getPayload();
+        byte[] payloadB = b.getPayload();
+        if (payloadA == null || payloadA.length == 0 || payloadB == null || payloadB.length == 0) {
+            return true;
+        }
+        return payloadA[0] == payloadB[0];
+    }
+
+    /**
+     * Puts the running task back in front of its lane, if a task of a higher lane is waiting
+     *
+     * @return true if the task has been preempted
+     */
+    private boolean preempt(BLETask task) {
+        synchronized (lanes) {
+            if (runningStarved || !hasTaskAbove(task.getLane())) {
+                return false;
+            }
+            lanes[task.getLane().ordinal()].addFirst(task);
+            preemptions[task.getLane().ordinal()]++;
+            return true;
+        }
     }
 
     @Override
     public void run() {
-        while (BTConnectionManager.getInstance(context, null).isConnected()) {
+        while (!stopped) {
             try {
-                final BLETask task = queue.take();
+                final BLETask task = take();
+                if (task == null) {
+                    break;
+                }
 
                 final List<BLEAction> actions = task.getActions();
                 mAbortTransaction = false;
+                boolean handedBack = false;
 
-                for (BLEAction action : actions) {
-                    if (mAbortTransaction) { // got disconnected
+                while (task.getPosition() < actions.size()) {
+                    if (mAbortTransaction || paused) { // got disconnected
                         Log.d(TAG, "Aborting running transaction");
                         break;
                     }
 
-                    mWaitCharacteristic = action.getCharacteristic();
+                    //only between two actions, so every task makes progress
+                    if (task.getPosition() > 0 && preempt(task)) {
+                        Log.d(TAG, "Preempting " + task.getLane() + " task at action " + task.getPosition());
+                        handedBack = true;
+                        break;
+                    }
+
+                    BLEAction action = actions.get(task.getPosition());
+                    task.setPosition(task.getPosition() + 1);
 
-                    mWaitForActionResultLatch = new CountDownLatch(1);
+                    if (action instanceof WaitAction) {
+                        park(task, ((WaitAction) action).getDuration());
+                        handedBack = true;
+                        break;
+                    }
 
-                    if (action.run(bleCommandManager)) {
-                        boolean waitForResult = action.expectsResult();
-                        if (waitForResult) {
-                            Log.d(TAG, "Latch Counter is "+mWaitForActionResultLatch.getCount());
-                            mWaitForActionResultLatch.await();
-                            mWaitForActionResultLatch = null;
-                            if (mAbortTransaction) {
-                                break;
-                            }
-                        }
+                    boolean success;
+                    if (action instanceof WriteAction && ((WriteAction) action).isWithoutResponse()) {
+                        success = runWriteWithoutResponse((WriteAction) action);
                     } else {
-                        Log.v(TAG, "action " + action.getClass().getSimpleName() + " returned false");
+                        success = runAction(action);
+                    }
+
+                    if (!success || mAbortTransaction) {
                         break;
                     }
                 }
+
+                //the running action has been failed by the disconnect, the rest of the task fails here
+                if (paused && !handedBack) {
+                    failRemainingActions(task, ERROR_DISCONNECTED, "Connection lost");
+                }
+                if (!handedBack) {
+                    coalescer.release(task);
+                }
             } catch (Exception e) {
                 Log.e(TAG, e.toString());
 
             } finally {
-                mWaitForActionResultLatch = null;
                 mWaitCharacteristic = null;
 
                 /*
@@ -95,20 +583,189 @@ public class QueueConsumer implements Runnable, BTConnectionManager.DataRead {
             }
         }
 
-        if (mWaitForActionResultLatch != null){
-            mWaitForActionResultLatch.countDown();
-        }
+        completion.cancel();
 
 
-        if (!queue.isEmpty()) {
+        if (!isEmpty()) {
             Log.d(TAG, "CLEARING QUEUE!!");
-            queue.clear();
+            clear();
+        }
+    }
+
+    private static void failRemainingActions(BLETask task, int errorCode, String msg) {
+        List<BLEAction> actions = task.getActions();
+        for (int i = task.getPosition(); i < actions.size(); i++) {
+            BLEAction action = actions.get(i);
+            ActionCallback callback = null;
+            if (action instanceof WriteAction) {
+                callback = ((WriteAction) action).getCallback();
+            } else if (action instanceof ReadAction) {
+                callback = ((ReadAction) action).getCallback();
+            }
+            if (callback != null) {
+                callback.onFail(errorCode, msg);
+            }
+        }
+    }
+
+    /**
+     * Runs the action and waits for its result, retrying it after a timeout
+     *
+     * @return true if the task can go on with its next action
+     */
+    private boolean runAction(BLEAction action) throws InterruptedException {
+        //the stack rejects other operations until the pending writes without response are sent
+        awaitUnackedWrites();
+
+        UUID characteristic = action.getCharacteristic();
+        mWaitCharacteristic = characteristic;
+
+        for (int attempt = 0; ; attempt++) {
+            completion.arm(action.getOperation(), characteristic);
+            long start = SystemClock.elapsedRealtime();
+
+            if (!action.run(bleCommandManager)) {
+                Log.v(TAG, "action " + action.getClass().getSimpleName() + " returned false");
+                coalescer.forget(action);
+                return false;
+            }
+            if (!action.expectsResult()) {
+                return true;
+            }
+
+            if (completion.await(action.getTimeout())) {
+                latencyStats.record(characteristic, SystemClock.elapsedRealtime() - start);
+                return true;
+            }
+
+            latencyStats.timeout(characteristic);
+            if (mAbortTransaction) {
+                return false;
+            }
+            if (attempt >= action.getRetries()) {
+                Log.e(TAG, "no result for " + characteristic + " after " + (attempt + 1) + " attempt(s), aborting task");
+                bleCommandManager.failCurrentAction(ERROR_TIMEOUT, "No result for " + characteristic + " within " + action.getTimeout() + " ms");
+                coalescer.forget(action);
+                return false;
+            }
+            Log.w(TAG, "no result for " + characteristic + " within " + action.getTimeout() + " ms, retrying");
+        }
+    }
+
+    /**
+     * Sends the write without response if the window has room, otherwise (or as a periodic
+     * barrier, or if the characteristic does not support it) as a normal acknowledged write
+     *
+     * @return true if the task can go on with its next action
+     */
+    private boolean runWriteWithoutResponse(WriteAction write) throws InterruptedException {
+        UUID characteristic = write.getCharacteristic();
+        boolean unacked = write.getService() == null
+                && unackedSinceBarrier < BARRIER_INTERVAL
+                && bleCommandManager.supportsWriteWithoutResponse(characteristic);
+
+        UnackedWrite sent = unacked ? acquireCredit(characteristic) : null;
+        if (sent != null) {
+            mWaitCharacteristic = null;
+            if (write.runWithoutResponse(bleCommandManager)) {
+                unackedSinceBarrier++;
+                writesWithoutResponse++;
+                return true;
+            }
+            //the stack is busy, an acknowledged write waits for it
+            releaseCredit(sent);
+        }
+
+        boolean success = runAction(write);
+        if (success && unackedSinceBarrier > 0) {
+            barrierWrites++;
+            unackedSinceBarrier = 0;
+        }
+        return success;
+    }
+
+    /**
+     * Waits for room in the write window and records the write, before it is handed to the stack
+     * so its callback can not arrive first
+     *
+     * @return the recorded write, or null if the window had no room in time
+     */
+    private UnackedWrite acquireCredit(UUID characteristic) throws InterruptedException {
+        synchronized (credits) {
+            long deadline = SystemClock.elapsedRealtime() + CREDIT_TIMEOUT_MS;
+            while (expireUnackedWrites() >= UNACKED_WRITE_WINDOW) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                credits.wait(remaining);
+            }
+            UnackedWrite write = new UnackedWrite(characteristic);
+            unackedWrites.addLast(write);
+            return write;
+        }
+    }
+
+    private void releaseCredit(UnackedWrite write) {
+        synchronized (credits) {
+            unackedWrites.remove(write);
+            credits.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the stack has called back for the writes without response, so the callback of the
+     * next acknowledged write is not taken for one of them. After the timeout the writes stay recorded,
+     * their callbacks still arrive before the one of the next write.
+     */
+    private void awaitUnackedWrites() throws InterruptedException {
+        synchronized (credits) {
+            long deadline = SystemClock.elapsedRealtime() + CREDIT_TIMEOUT_MS;
+            while (expireUnackedWrites() > 0) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    Log.w(TAG, unackedWrites.size() + " write(s) without response not confirmed by the stack");
+                    return;
+                }
+                credits.wait(remaining);
+            }
+        }
+    }
+
+    /**
+     * Drops the writes without response whose callback has not arrived within {@link #UNACKED_WRITE_EXPIRY_MS}
+     *
+     * @return the number of writes left
+     */
+    private int expireUnackedWrites() {
+        long now = SystemClock.elapsedRealtime();
+        while (!unackedWrites.isEmpty() && now - unackedWrites.peekFirst().sentAt > UNACKED_WRITE_EXPIRY_MS) {
+            Log.w(TAG, "no callback for the write without response to " + unackedWrites.pollFirst().characteristic);
+        }
+        return unackedWrites.size();
+    }
+
+    /**
+     * Called from the binder thread for every write callback of the characteristic
+     *
+     * @return true if the callback belongs to a write without response, whose credit is returned,
+     * false if it is the result of an acknowledged write
+     */
+    public boolean onWriteWithoutResponseSent(UUID characteristic) {
+        synchronized (credits) {
+            expireUnackedWrites();
+            UnackedWrite oldest = unackedWrites.peekFirst();
+            if (oldest == null || !oldest.characteristic.equals(characteristic)) {
+                return false;
+            }
+            unackedWrites.pollFirst();
+            credits.notifyAll();
+            return true;
         }
     }
 
     @Override
-    public void OnDataRead() {
-        if (mWaitForActionResultLatch != null)
-            mWaitForActionResultLatch.countDown();
+    public void OnDataRead(BLEAction.Operation operation, UUID characteristic) {
+        completion.complete(operation, characteristic);
     }
 }
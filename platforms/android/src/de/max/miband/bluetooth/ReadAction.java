@@ -13,6 +13,10 @@ public class ReadAction implements BLEAction {
 
     private ActionCallback callback;
 
+    private long timeout = DEFAULT_TIMEOUT_MS;
+
+    private int retries = 1;
+
     public ReadAction(final UUID characteristic) {
         this.characteristic = characteristic;
     }
@@ -30,6 +34,29 @@ public class ReadAction implements BLEAction {
         return callback;
     }
 
+    @Override
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public int getRetries() {
+        return retries;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    @Override
+    public Operation getOperation() {
+        return Operation.READ;
+    }
+
     @Override
     public boolean expectsResult() {
         return true;
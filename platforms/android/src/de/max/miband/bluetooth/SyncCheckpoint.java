@@ -0,0 +1,83 @@
+package de.max.miband.bluetooth;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import de.max.miband.MiBandConst;
+
+/**
+ * Remembers the last activity block of a band that has been fully committed to the database.
+ * Since the data always remains on the band, the next synchronization transfers the same blocks
+ * again; blocks covered by the checkpoint can be acked without decoding and storing them again.
+ */
+public class SyncCheckpoint {
+
+    private static final String KEY_TIMESTAMP = "_timestamp";
+    private static final String KEY_BYTES = "_bytes";
+
+    private final SharedPreferences prefs;
+    private final String address;
+
+    //start of the last committed block, in seconds
+    private int timestamp;
+    //size of the last committed block, in bytes
+    private int bytes;
+
+    public SyncCheckpoint(Context context, String address) {
+        this.prefs = context.getSharedPreferences(MiBandConst.PREF_MIBAND_SYNC_CHECKPOINT, Context.MODE_PRIVATE);
+        this.address = address;
+        this.timestamp = prefs.getInt(address + KEY_TIMESTAMP, 0);
+        this.bytes = prefs.getInt(address + KEY_BYTES, 0);
+    }
+
+    /**
+     * Checks if a block has already been stored completely
+     *
+     * @param blockTimestamp : start of the block, in seconds
+     * @param blockBytes     : size of the block, in bytes
+     * @return true, if the block is covered by the checkpoint
+     */
+    public synchronized boolean covers(int blockTimestamp, int blockBytes) {
+        if (blockBytes == 0 || timestamp == 0) {
+            return false;
+        }
+        return blockTimestamp < timestamp || (blockTimestamp == timestamp && blockBytes <= bytes);
+    }
+
+    /**
+     * Moves the checkpoint forward to the given block, once it has been committed
+     *
+     * @param blockTimestamp : start of the block, in seconds
+     * @param blockBytes     : size of the block, in bytes
+     */
+    public synchronized void commit(int blockTimestamp, int blockBytes) {
+        if (blockBytes == 0 || blockTimestamp < timestamp || (blockTimestamp == timestamp && blockBytes <= bytes)) {
+            return;
+        }
+
+        timestamp = blockTimestamp;
+        bytes = blockBytes;
+
+        prefs.edit()
+                .putInt(address + KEY_TIMESTAMP, timestamp)
+                .putInt(address + KEY_BYTES, bytes)
+                .apply();
+    }
+
+    /**
+     * Forgets the checkpoint, so the next synchronization stores every block again
+     */
+    public synchronized void clear() {
+        timestamp = 0;
+        bytes = 0;
+
+        prefs.edit()
+                .remove(address + KEY_TIMESTAMP)
+                .remove(address + KEY_BYTES)
+                .apply();
+    }
+
+    public String getAddress() {
+        return address;
+    }
+}
@@ -0,0 +1,100 @@
+package de.max.miband.bluetooth;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counters of a single activity synchronization
+ */
+public class SyncStats {
+
+    private long startTime;
+    private long endTime;
+
+    private int blocks;
+    private int bytes;
+    private int skippedBlocks;
+    private int skippedBytes;
+    private int storedMinutes;
+
+    public synchronized void reset() {
+        startTime = System.currentTimeMillis();
+        endTime = 0;
+        blocks = 0;
+        bytes = 0;
+        skippedBlocks = 0;
+        skippedBytes = 0;
+        storedMinutes = 0;
+    }
+
+    public synchronized void blockReceived(int blockBytes, boolean skipped) {
+        blocks++;
+        bytes += blockBytes;
+        if (skipped) {
+            skippedBlocks++;
+            skippedBytes += blockBytes;
+        }
+    }
+
+    public synchronized void minutesStored(int minutes) {
+        storedMinutes += minutes;
+    }
+
+    public synchronized void finished() {
+        endTime = System.currentTimeMillis();
+    }
+
+    public synchronized int getBlocks() {
+        return blocks;
+    }
+
+    public synchronized int getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getSkippedBlocks() {
+        return skippedBlocks;
+    }
+
+    /**
+     * @return the number of bytes that were already stored and therefore not decoded and written again
+     */
+    public synchronized int getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    public synchronized int getStoredMinutes() {
+        return storedMinutes;
+    }
+
+    public synchronized long getDuration() {
+        return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    public synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("blocks", blocks);
+            json.put("bytes", bytes);
+            json.put("skippedBlocks", skippedBlocks);
+            json.put("skippedBytes", skippedBytes);
+            json.put("storedMinutes", storedMinutes);
+            json.put("duration", getDuration());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SyncStats{" +
+                "blocks=" + blocks +
+                ", bytes=" + bytes +
+                ", skippedBlocks=" + skippedBlocks +
+                ", skippedBytes=" + skippedBytes +
+                ", storedMinutes=" + storedMinutes +
+                ", duration=" + getDuration() +
+                '}';
+    }
+}
@@ -6,6 +6,9 @@ import java.util.UUID;
 
 /**
  * Created by Lewis on 10/01/15.
+ *
+ * Pauses the task for the given duration. The {@link QueueConsumer} parks the task instead of
+ * running this action, so the link is free for other tasks meanwhile.
  */
 public class WaitAction implements BLEAction {
     private final long duration;
@@ -14,6 +17,15 @@ public class WaitAction implements BLEAction {
         this.duration = duration;
     }
 
+    public long getDuration() {
+        return duration;
+    }
+
+    @Override
+    public Operation getOperation() {
+        return null;
+    }
+
     @Override
     public boolean expectsResult() {
         return false;
@@ -24,6 +36,16 @@ public class WaitAction implements BLEAction {
         return null;
     }
 
+    @Override
+    public long getTimeout() {
+        return 0;
+    }
+
+    @Override
+    public int getRetries() {
+        return 0;
+    }
+
 
     @Override
     public boolean run(BTCommandManager btCommandManager) {
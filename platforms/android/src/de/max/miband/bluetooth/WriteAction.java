@@ -18,6 +18,14 @@ public class WriteAction implements BLEAction {
 
     private ActionCallback callback;
 
+    private long timeout = DEFAULT_TIMEOUT_MS;
+
+    //writes are not repeated by default, e.g. a vibration would run twice
+    private int retries = 0;
+
+    //see setWithoutResponse()
+    private boolean withoutResponse;
+
     public WriteAction(final UUID service, final UUID characteristic, final byte[] payload) {
         this.service = service;
         this.characteristic = characteristic;
@@ -54,10 +62,49 @@ public class WriteAction implements BLEAction {
         return callback;
     }
 
+    void setCallback(ActionCallback callback) {
+        this.callback = callback;
+    }
+
     public UUID getService() {
         return service;
     }
 
+    @Override
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public int getRetries() {
+        return retries;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    public boolean isWithoutResponse() {
+        return withoutResponse;
+    }
+
+    /**
+     * Lets the {@link QueueConsumer} send this write without waiting for the band to acknowledge it,
+     * if the characteristic supports it. Meant for commands of long patterns, e.g. vibrations.
+     */
+    public void setWithoutResponse(boolean withoutResponse) {
+        this.withoutResponse = withoutResponse;
+    }
+
+    @Override
+    public Operation getOperation() {
+        return Operation.WRITE;
+    }
+
     @Override
     public boolean expectsResult() {
         return true;
@@ -74,4 +121,13 @@ public class WriteAction implements BLEAction {
         }
 
     }
+
+    /**
+     * Sends the payload without response, see {@link #setWithoutResponse(boolean)}
+     *
+     * @return false if the bluetooth stack did not accept the write
+     */
+    public boolean runWithoutResponse(BTCommandManager btCommandManager) {
+        return btCommandManager.writeCharacteristicWithoutResponse(getCharacteristic(), getPayload(), getCallback());
+    }
 }
@@ -0,0 +1,54 @@
+package de.max.miband.model;
+
+import java.util.UUID;
+
+/**
+ * The characteristics of the {@link Profile#UUID_SERVICE_MILI} service, the ordinal is used as index
+ * of the resolved characteristics of a connection
+ */
+public enum MiBandCharacteristic {
+    DEVICE_INFO(Profile.UUID_CHAR_DEVICE_INFO),
+    DEVICE_NAME(Profile.UUID_CHAR_DEVICE_NAME),
+    NOTIFICATION(Profile.UUID_CHAR_NOTIFICATION),
+    USER_INFO(Profile.UUID_CHAR_USER_INFO),
+    CONTROL_POINT(Profile.UUID_CHAR_CONTROL_POINT),
+    REALTIME_STEPS(Profile.UUID_CHAR_REALTIME_STEPS),
+    ACTIVITY_DATA(Profile.UUID_CHAR_ACTIVITY_DATA),
+    FIRMWARE_DATA(Profile.UUID_CHAR_FIRMWARE_DATA),
+    LE_PARAMS(Profile.UUID_CHAR_LE_PARAMS),
+    DATA_TIME(Profile.UUID_CHAR_DATA_TIME),
+    STATISTICS(Profile.UUID_CHAR_STATISTICS),
+    BATTERY(Profile.UUID_CHAR_BATTERY),
+    TEST(Profile.UUID_CHAR_TEST),
+    SENSOR_DATA(Profile.UUID_CHAR_SENSOR_DATA),
+    PAIR(Profile.UUID_CHAR_PAIR);
+
+    private static final MiBandCharacteristic[] VALUES = values();
+
+    private final UUID uuid;
+
+    MiBandCharacteristic(UUID uuid) {
+        this.uuid = uuid;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    /**
+     * @return the characteristic with the given uuid, or null if it is not part of the service
+     */
+    public static MiBandCharacteristic fromUuid(UUID uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        //all uuids share the base uuid, so the most significant bits are enough to tell them apart
+        long bits = uuid.getMostSignificantBits();
+        for (MiBandCharacteristic characteristic : VALUES) {
+            if (characteristic.uuid.getMostSignificantBits() == bits && characteristic.uuid.equals(uuid)) {
+                return characteristic;
+            }
+        }
+        return null;
+    }
+}
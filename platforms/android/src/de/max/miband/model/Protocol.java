@@ -34,6 +34,7 @@ public class Protocol {
 
     public static final byte COMMAND_CONFIRM_ACTIVITY_DATA_TRANSFER_COMPLETE = 0xa;
     public static final byte COMMAND_SET_FITNESS_GOAL =  0x5;
+    public static final byte COMMAND_SET_COLOR_THEME = 14;
 
     public static final byte MODE_REGULAR_DATA_LEN_BYTE = 0x0;
 
@@ -0,0 +1,101 @@
+package de.max.miband.models;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Sums and maxima of the minutes of a time range
+ */
+public class ActivityAggregate {
+
+    private final long from;
+    private final long to;
+    private long steps;
+    private long intensity;
+    private int maxSteps;
+    private int maxIntensity;
+    private int activeMinutes;
+
+    public ActivityAggregate(long from, long to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Adds the values of a single minute
+     */
+    public void add(int minuteSteps, int minuteIntensity) {
+        add(minuteSteps, minuteIntensity, minuteSteps, minuteIntensity, minuteSteps > 0 ? 1 : 0);
+    }
+
+    /**
+     * Adds the values of a range of minutes
+     */
+    public void add(long steps, long intensity, int maxSteps, int maxIntensity, int activeMinutes) {
+        this.steps += steps;
+        this.intensity += intensity;
+        this.maxSteps = Math.max(this.maxSteps, maxSteps);
+        this.maxIntensity = Math.max(this.maxIntensity, maxIntensity);
+        this.activeMinutes += activeMinutes;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    public long getIntensity() {
+        return intensity;
+    }
+
+    public int getMaxSteps() {
+        return maxSteps;
+    }
+
+    public int getMaxIntensity() {
+        return maxIntensity;
+    }
+
+    /**
+     * @return the number of minutes with at least one step
+     */
+    public int getActiveMinutes() {
+        return activeMinutes;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("from", from);
+            json.put("to", to);
+            json.put("steps", steps);
+            json.put("intensity", intensity);
+            json.put("maxSteps", maxSteps);
+            json.put("maxIntensity", maxIntensity);
+            json.put("activeMinutes", activeMinutes);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return "ActivityAggregate{" +
+                "from=" + from +
+                ", to=" + to +
+                ", steps=" + steps +
+                ", intensity=" + intensity +
+                ", maxSteps=" + maxSteps +
+                ", maxIntensity=" + maxIntensity +
+                ", activeMinutes=" + activeMinutes +
+                '}';
+    }
+}
@@ -5,13 +5,32 @@ import java.util.List;
 public class ActivityAnalysis {
 
     public ActivityAmounts calculateActivityAmounts(List<ActivityData> samples) {
-        ActivityAmount deepSleep = new ActivityAmount(ActivityKind.TYPE_DEEP_SLEEP);
-        ActivityAmount lightSleep = new ActivityAmount(ActivityKind.TYPE_LIGHT_SLEEP);
-        ActivityAmount activity = new ActivityAmount(ActivityKind.TYPE_ACTIVITY);
-
-        ActivityAmount previousAmount = null;
-        ActivityData previousSample = null;
+        AmountsVisitor visitor = new AmountsVisitor();
+        ActivityRecord record = new ActivityRecord();
         for (ActivityData sample : samples) {
+            record.set(sample.getTimestamp(), sample.getProvider(), sample.getIntensity(), sample.getSteps() & 0xff, sample.getType());
+            visitor.visit(record);
+        }
+        return visitor.getActivityAmounts();
+    }
+
+    /**
+     * Calculates the activity amounts while the samples are streamed, e.g. from
+     * {@link de.max.miband.sqlite.ActivitySQLite#visitAllActivitiesSamples(long, long, ActivityVisitor)},
+     * which serves recent ranges from the {@link de.max.miband.sqlite.ActivityCache}.
+     * Samples must be visited ordered by time.
+     */
+    public static class AmountsVisitor implements ActivityVisitor {
+        private final ActivityAmount deepSleep = new ActivityAmount(ActivityKind.TYPE_DEEP_SLEEP);
+        private final ActivityAmount lightSleep = new ActivityAmount(ActivityKind.TYPE_LIGHT_SLEEP);
+        private final ActivityAmount activity = new ActivityAmount(ActivityKind.TYPE_ACTIVITY);
+
+        private ActivityAmount previousAmount = null;
+        private int previousTimestamp;
+        private byte previousType;
+
+        @Override
+        public boolean visit(ActivityRecord sample) {
             ActivityAmount amount = null;
             switch (sample.getType()) {
                 case ActivityData.TYPE_DEEP_SLEEP:
@@ -26,9 +45,9 @@ public class ActivityAnalysis {
                     break;
             }
 
-            if (previousSample != null) {
-                long timeDifference = sample.getTimestamp() - previousSample.getTimestamp();
-                if (previousSample.getType() == sample.getType()) {
+            if (previousAmount != null) {
+                long timeDifference = sample.getTimestamp() - previousTimestamp;
+                if (previousType == sample.getType()) {
                     amount.addSeconds(timeDifference);
                 } else {
                     long sharedTimeDifference = (long) (timeDifference / 2.0f);
@@ -40,21 +59,25 @@ public class ActivityAnalysis {
             }
 
             previousAmount = amount;
-            previousSample = sample;
+            previousTimestamp = sample.getTimestamp();
+            previousType = sample.getType();
+            return true;
         }
 
-        ActivityAmounts result = new ActivityAmounts();
-        if (deepSleep.getTotalSeconds() > 0) {
-            result.addAmount(deepSleep);
-        }
-        if (lightSleep.getTotalSeconds() > 0) {
-            result.addAmount(lightSleep);
-        }
-        if (activity.getTotalSeconds() > 0) {
-            result.addAmount(activity);
-        }
-        result.calculatePercentages();
+        public ActivityAmounts getActivityAmounts() {
+            ActivityAmounts result = new ActivityAmounts();
+            if (deepSleep.getTotalSeconds() > 0) {
+                result.addAmount(deepSleep);
+            }
+            if (lightSleep.getTotalSeconds() > 0) {
+                result.addAmount(lightSleep);
+            }
+            if (activity.getTotalSeconds() > 0) {
+                result.addAmount(activity);
+            }
+            result.calculatePercentages();
 
-        return result;
+            return result;
+        }
     }
 }
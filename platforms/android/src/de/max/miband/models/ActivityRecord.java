@@ -0,0 +1,52 @@
+package de.max.miband.models;
+
+/**
+ * Mutable counterpart of {@link ActivityData}. A single instance is reused for every row
+ * while streaming activities, so it must not be kept by an {@link ActivityVisitor}.
+ */
+public class ActivityRecord {
+
+    private int timestamp;
+    private byte provider;
+    private short intensity;
+    private int steps;
+    private byte type;
+
+    public void set(int timestamp, byte provider, short intensity, int steps, byte type) {
+        this.timestamp = timestamp;
+        this.provider = provider;
+        this.intensity = intensity;
+        this.steps = steps;
+        this.type = type;
+    }
+
+    public int getTimestamp() {
+        return timestamp;
+    }
+
+    public byte getProvider() {
+        return provider;
+    }
+
+    public short getIntensity() {
+        return intensity;
+    }
+
+    /**
+     * @return the steps of this minute (0 - 255)
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * Creates an immutable copy, e.g. to keep a record beyond {@link ActivityVisitor#visit(ActivityRecord)}
+     */
+    public ActivityData toActivityData() {
+        return new ActivityData(timestamp, provider, intensity, (byte) steps, type);
+    }
+}
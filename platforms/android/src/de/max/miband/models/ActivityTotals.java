@@ -0,0 +1,66 @@
+package de.max.miband.models;
+
+/**
+ * Totals of an hour or day bucket, or of a range of them
+ */
+public class ActivityTotals {
+
+    private final int timestamp;
+    private int steps;
+    private int activeMinutes;
+    private int deepSleepMinutes;
+    private int lightSleepMinutes;
+
+    public ActivityTotals(int timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public ActivityTotals(int timestamp, int steps, int activeMinutes, int deepSleepMinutes, int lightSleepMinutes) {
+        this.timestamp = timestamp;
+        this.steps = steps;
+        this.activeMinutes = activeMinutes;
+        this.deepSleepMinutes = deepSleepMinutes;
+        this.lightSleepMinutes = lightSleepMinutes;
+    }
+
+    public void add(ActivityTotals other) {
+        steps += other.steps;
+        activeMinutes += other.activeMinutes;
+        deepSleepMinutes += other.deepSleepMinutes;
+        lightSleepMinutes += other.lightSleepMinutes;
+    }
+
+    /**
+     * @return the start of the bucket in seconds
+     */
+    public int getTimestamp() {
+        return timestamp;
+    }
+
+    public int getSteps() {
+        return steps;
+    }
+
+    public int getActiveMinutes() {
+        return activeMinutes;
+    }
+
+    public int getDeepSleepMinutes() {
+        return deepSleepMinutes;
+    }
+
+    public int getLightSleepMinutes() {
+        return lightSleepMinutes;
+    }
+
+    @Override
+    public String toString() {
+        return "ActivityTotals{" +
+                "timestamp=" + timestamp +
+                ", steps=" + steps +
+                ", activeMinutes=" + activeMinutes +
+                ", deepSleepMinutes=" + deepSleepMinutes +
+                ", lightSleepMinutes=" + lightSleepMinutes +
+                '}';
+    }
+}
@@ -0,0 +1,13 @@
+package de.max.miband.models;
+
+/**
+ * Receives activities one by one while they are read from the database
+ */
+public interface ActivityVisitor {
+
+    /**
+     * @param record the current activity, only valid during this call
+     * @return true to continue, false to stop reading
+     */
+    public boolean visit(ActivityRecord record);
+}
@@ -0,0 +1,55 @@
+package de.max.miband.plugins;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Time spent in {@link MiBandPlugin#execute} per action, from the call until the action has been
+ * dispatched. Work the actions hand to the thread pool is not included.
+ */
+public class ActionLatency {
+
+    private static class Action {
+        long count;
+        long totalMicros;
+        long lastMicros;
+        long maxMicros;
+    }
+
+    //in the order the actions were first called
+    private final LinkedHashMap<String, Action> actions = new LinkedHashMap<>();
+
+    public synchronized void record(String action, long elapsedNanos) {
+        Action a = actions.get(action);
+        if (a == null) {
+            a = new Action();
+            actions.put(action, a);
+        }
+        long micros = elapsedNanos / 1000;
+        a.count++;
+        a.totalMicros += micros;
+        a.lastMicros = micros;
+        a.maxMicros = Math.max(a.maxMicros, micros);
+    }
+
+    public synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<String, Action> entry : actions.entrySet()) {
+                Action a = entry.getValue();
+                JSONObject action = new JSONObject();
+                action.put("count", a.count);
+                action.put("lastMicros", a.lastMicros);
+                action.put("averageMicros", a.count == 0 ? 0 : a.totalMicros / a.count);
+                action.put("maxMicros", a.maxMicros);
+                json.put(entry.getKey(), action);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+}
@@ -3,12 +3,16 @@ package de.max.miband.plugins;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.telecom.Call;
 import android.util.Log;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.NativeToJsMessageQueue;
 import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -16,16 +20,24 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 
 import de.max.miband.ActionCallback;
 import de.max.miband.DateUtils;
 import de.max.miband.DeviceInfo;
 import de.max.miband.MiBand;
+import de.max.miband.MiBandPool;
 import de.max.miband.NotifyListener;
 import de.max.miband.RealtimeStepsNotifyListener;
+import de.max.miband.bluetooth.NotificationDispatcher;
+import de.max.miband.bluetooth.SyncStats;
 import de.max.miband.model.BatteryInfo;
-import de.max.miband.models.ActivityData;
+import de.max.miband.models.ActivityAggregate;
+import de.max.miband.models.ActivityTotals;
+import de.max.miband.sqlite.ActivityCache;
+import de.max.miband.sqlite.ActivityRangeIndex;
 import de.max.miband.sqlite.ActivitySQLite;
 
 /**
@@ -33,7 +45,100 @@ import de.max.miband.sqlite.ActivitySQLite;
  */
 public class MiBandPlugin extends CordovaPlugin {
     private Context applicationContext;
+    //set while the sensor data is streamed as ArrayBuffers instead of strings
+    private volatile SensorStream sensorStream;
+    //the callbacks of subscribeLiveSteps and subscribeLiveSensorData, one per kind of live value, so
+    //their results can be coalesced. Without them the live values go to the callback of connectBand
+    private volatile CallbackContext liveStepsCallbackContext;
+    private volatile CallbackContext liveSensorCallbackContext;
     private String TAG ="MiBandPlugin";
+    //how long a live result waits for room in the queue to JavaScript with the BLOCK overflow policy
+    private static final long DEFAULT_BLOCK_TIMEOUT_MS = 500;
+
+    /**
+     * A plugin action, dispatched by its name from {@link #execute}
+     */
+    private abstract class Action {
+        //whether the band is looked up before the action is executed
+        final boolean needsBand;
+
+        Action(boolean needsBand) {
+            this.needsBand = needsBand;
+        }
+
+        public abstract void execute(JSONArray data, CallbackContext callbackContext, MiBand miBand) throws JSONException;
+    }
+
+    private final HashMap<String, Action> actions = new HashMap<>();
+    private final ActionLatency actionLatency = new ActionLatency();
+
+    //the address of the paired band, null until the bonded devices have been searched
+    private volatile String bandAddress;
+    //the band chosen with selectBand, the actions apply to it instead of the one found by the search
+    private volatile String selectedAddress;
+    //incremented on the main thread with every bond state change, a search started before it is not cached
+    private volatile int bondStateChanges;
+
+    private final BroadcastReceiver bondStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            bondStateChanges++;
+            bandAddress = null;
+            Log.d(TAG, "Bond state changed, searching the band again with the next action");
+        }
+    };
+
+    @Override
+    protected void pluginInitialize() {
+        final Context context = this.cordova.getActivity();
+        applicationContext = context;
+        buildActions();
+        context.registerReceiver(bondStateReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
+        //days of minutes kept in memory, <preference name="ActivityCacheDays" value="7" /> in config.xml
+        int cacheDays = preferences.getInteger("ActivityCacheDays", ActivityCache.DEFAULT_CAPACITY_DAYS);
+        ActivityCache.getInstance(context).setCapacityDays(Math.max(1, cacheDays));
+        //open the shared activity database off the UI thread
+        cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                ActivitySQLite.getInstance(context).open();
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        this.cordova.getActivity().unregisterReceiver(bondStateReceiver);
+        //the database stays open, the ActivityWriter and the other bands of the pool still use it
+        super.onDestroy();
+    }
+
+    /**
+     * Keeps the callback open for the live results, without sending one yet
+     */
+    private void keepCallback(CallbackContext callbackContext) {
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+    }
+
+    /**
+     * Stops coalescing the results of a replaced live subscription
+     */
+    private void unsubscribe(CallbackContext callbackContext) {
+        if (callbackContext != null) {
+            webView.getNativeToJsMessageQueue().setCoalescing(callbackContext.getCallbackId(), false);
+        }
+    }
+
+    /**
+     * Sends the last samples of the sensor stream, the packet counter starts over with the next connection
+     */
+    private void resetSensorStream() {
+        SensorStream stream = sensorStream;
+        if (stream != null) {
+            stream.reset();
+        }
+    }
 
     private long getStartOfDayInMillis() {
         Calendar calendar = Calendar.getInstance();
@@ -50,60 +155,25 @@ public class MiBandPlugin extends CordovaPlugin {
         return getStartOfDayInMillis() + (24 * 60 * 60 * 1000);
     }
 
-    private int readActivityData(){
-        Calendar before = Calendar.getInstance();
-        //7 days before
-        before.add(Calendar.DAY_OF_WEEK, -7);
-
-        int start= (int) (getStartOfDayInMillis()/1000);
-        int end= (int) (System.currentTimeMillis() / 1000);
-
-        //use DateUtils to display the time in the format "yyyy-MM-dd HH:mm:ss"
-        Log.i(TAG, "data from " + start + " to " + end);
+    private int readActivityData(MiBand miBand){
+        int now = (int) (System.currentTimeMillis() / 1000);
 
-        //all our data is stored in ActivitySQLite as ActivityData objects
-        ArrayList<ActivityData> allActivities = ActivitySQLite.getInstance(this.cordova.getActivity()).getAllActivitiesSamples(start, end);
+        //the daily rollup is kept up to date with every stored minute, so no minute rows are loaded here
+        ActivityTotals today = ActivitySQLite.getInstance(this.cordova.getActivity()).getDayTotals(miBand.getProvider(), now);
 
-        float movement_divisor = 180.0f;
-        float value;
-        int totalSteps=0;
-
-        String dateString = "";
-        String firstDate = "";
-        boolean isFirst=true;
-        for (ActivityData ad : allActivities) {
-
-            Calendar date = Calendar.getInstance();
-            date.setTimeInMillis(ad.getTimestamp() * 1000L);
-
-            dateString = DateUtils.convertString(date);
-            if (isFirst){
-                firstDate=dateString;
-                isFirst=false;
-            }
-            Log.i(TAG, "date " + dateString);
-            Log.i(TAG, "steps " + ad.getSteps());
-            totalSteps+=ad.getSteps();
-
-            value = ((float) ad.getIntensity()) / movement_divisor;
-            //Log.i(TAG, "value "+value);
-        }
-
-        Log.d(TAG, "FIRST DATE:::::::"+firstDate);
-        Log.d(TAG, "LAST DATE:::::::"+dateString);
-        Log.d(TAG, "TOTAL STEPS FOR TODAY:::::::"+totalSteps);
-        return totalSteps;
+        Log.d(TAG, "TOTALS FOR TODAY:::::::" + today);
+        return today.getSteps();
     }
 
 
     private void synchronizeMiBand(final MiBand miBand, final CallbackContext callbackContext){
-        miBand.startListeningSync(new ActionCallback() {
+        MiBandPool.getInstance(applicationContext).getSyncScheduler().schedule(miBand, new ActionCallback() {
             @Override
             public void onSuccess(Object data) {
                 if (data != null && data.equals("sync complete")) {
                     Log.d(TAG, "Synchronization successfully completed!");
 
-                    int synchSteps = readActivityData();
+                    int synchSteps = readActivityData(miBand);
                     sendResult(callbackContext, Integer.toString(synchSteps), true);
                 }
             }
@@ -123,7 +193,22 @@ public class MiBandPlugin extends CordovaPlugin {
      * org.json.JSONArray, org.apache.cordova.CallbackContext)
      */
 
+    /**
+     * Sends the final result of an action. Final results are never dropped by the queue to JavaScript.
+     */
     private void sendResult(final CallbackContext callbackContext, String msg, boolean success){
+        sendResult(callbackContext, msg, success, false);
+    }
+
+    /**
+     * Sends a result of a callback which gets more results, e.g. live values.
+     * These may be dropped by the queue to JavaScript, see setBridgeOverflowPolicy.
+     */
+    private void sendLiveResult(final CallbackContext callbackContext, String msg, boolean success){
+        sendResult(callbackContext, msg, success, true);
+    }
+
+    private void sendResult(final CallbackContext callbackContext, String msg, boolean success, boolean keepCallback){
         JSONObject result = null;
         try {
             result = new JSONObject();
@@ -138,257 +223,542 @@ public class MiBandPlugin extends CordovaPlugin {
             pluginresult = new PluginResult(PluginResult.Status.ERROR, result);
         }
 
-        pluginresult.setKeepCallback(true);
+        pluginresult.setKeepCallback(keepCallback);
         callbackContext.sendPluginResult(pluginresult);
     }
 
 
     @Override
     public boolean execute(String action, JSONArray data,
-                           final CallbackContext callbackContext) throws JSONException {
-        // get application Context
-        applicationContext = this.cordova.getActivity();
-        //Search for a Band
+                           CallbackContext callbackContext) throws JSONException {
+        Action handler = actions.get(action);
+        if (handler == null) {
+            return false;
+        }
+
+        long startedAt = System.nanoTime();
+        try {
+            MiBand miBand = null;
+            if (handler.needsBand) {
+                miBand = getBand(callbackContext);
+                if (miBand == null) {
+                    return true;
+                }
+            }
+            handler.execute(data, callbackContext, miBand);
+        } finally {
+            actionLatency.record(action, System.nanoTime() - startedAt);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the band to execute an action on, or sends the error and returns null
+     */
+    private MiBand getBand(CallbackContext callbackContext) {
+        String address = findBandAddress();
+        if (address == null) {
+            sendResult(callbackContext, "No MiBand found to pair with.", false);
+            return null;
+        }
+
+        try {
+            return MiBandPool.getInstance(applicationContext).get(address);
+        } catch (IllegalStateException e) {
+            sendResult(callbackContext, e.getMessage(), false);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the band selected with selectBand, otherwise searches the bonded devices for a band.
+     * The result of the search is kept until the bond state of a device changes.
+     */
+    private String findBandAddress() {
+        String address = selectedAddress;
+        if (address != null) {
+            return address;
+        }
+        address = bandAddress;
+        if (address != null) {
+            return address;
+        }
+
+        int changes = bondStateChanges;
+        List<String> addresses = findBondedBands();
+        address = addresses.isEmpty() ? null : addresses.get(addresses.size() - 1);
+        if (changes == bondStateChanges) {
+            bandAddress = address;
+        }
+        return address;
+    }
+
+    /**
+     * @return the addresses of the bonded bands
+     */
+    private List<String> findBondedBands() {
+        List<String> addresses = new ArrayList<>();
         BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        Set<BluetoothDevice> pairedDevices = mBluetoothAdapter.getBondedDevices();
-        boolean foundBand=false;
-        String address="";
-        for(BluetoothDevice device : pairedDevices){
+        if (mBluetoothAdapter == null) {
+            return addresses;
+        }
+        for (BluetoothDevice device : mBluetoothAdapter.getBondedDevices()) {
             Log.d(TAG, "Found: "+device.getName()+ " | "+device.getAddress());
             if (device.getName() != null && device.getAddress() != null && device.getName().startsWith("MI")){ //&& device.getAddress().startsWith("88:0F:10")) {
-                address=device.getAddress();
-                foundBand=true;
+                addresses.add(device.getAddress());
             }
         }
-        if (!foundBand){
-            sendResult(callbackContext, "No MiBand found to pair with.",false);
-            return true;
-        }
+        return addresses;
+    }
 
-        //Get MiBand
-        final MiBand miBand = MiBand.getInstance(applicationContext,address);
+    private void buildActions() {
+        //the addresses of the bonded bands, as a JSON array
+        actions.put("getBands", new Action(false) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                sendResult(callbackContext, new JSONArray(findBondedBands()).toString(), true);
+            }
+        });
+
+        //the following actions apply to the band with the given address, null to search for one again
+        actions.put("selectBand", new Action(false) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                String address = data.isNull(0) ? null : data.getString(0);
+                if (address != null && !BluetoothAdapter.checkBluetoothAddress(address.toUpperCase(Locale.US))) {
+                    sendResult(callbackContext, "Invalid band address: " + address, false);
+                    return;
+                }
+                selectedAddress = address != null ? address.toUpperCase(Locale.US) : null;
+                sendResult(callbackContext, address != null ? "Selected " + selectedAddress : "Selection cleared", true);
+            }
+        });
+
+        //stored data can be read without a band
+        actions.put("getRangeAggregate", new Action(false) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                final long from = data.getLong(0);
+                final long to = data.getLong(1);
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        ActivityAggregate aggregate = ActivityRangeIndex.getInstance(applicationContext).getAggregate(from, to);
+                        sendResult(callbackContext, aggregate.toJSON().toString(), true);
+                    }
+                });
+            }
+        });
+
+        //the live step counts go to this callback instead of the one of connectBand
+        actions.put("subscribeLiveSteps", new Action(false) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                unsubscribe(liveStepsCallbackContext);
+                liveStepsCallbackContext = callbackContext;
+                keepCallback(callbackContext);
+            }
+        });
+
+        //the live sensor values go to this callback instead of the one of connectBand
+        actions.put("subscribeLiveSensorData", new Action(false) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                unsubscribe(liveSensorCallbackContext);
+                liveSensorCallbackContext = callbackContext;
+                keepCallback(callbackContext);
+            }
+        });
+
+        //only the latest value of each live subscription reaches JavaScript, at most once per frame
+        actions.put("setLiveUpdateCoalescing", new Action(false) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                boolean coalesce = data.optBoolean(0, true);
+                int frameRate = data.optInt(1, NativeToJsMessageQueue.DEFAULT_TARGET_FRAME_RATE);
+                CallbackContext steps = liveStepsCallbackContext;
+                CallbackContext sensor = liveSensorCallbackContext;
+                //the callback of connectBand mixes the kinds of values and its status, it is never coalesced
+                if (steps == null && sensor == null) {
+                    sendResult(callbackContext, "No live subscription, call subscribeLiveSteps or subscribeLiveSensorData first", false);
+                    return;
+                }
+                NativeToJsMessageQueue queue = webView.getNativeToJsMessageQueue();
+                queue.setTargetFrameRate(frameRate);
+                if (steps != null) {
+                    queue.setCoalescing(steps.getCallbackId(), coalesce);
+                }
+                if (sensor != null) {
+                    queue.setCoalescing(sensor.getCallbackId(), coalesce);
+                }
+                sendResult(callbackContext, "Live update coalescing " + (coalesce ? "enabled" : "disabled"), true);
+            }
+        });
+
+        //what happens to the live results of this plugin when the queue to JavaScript is full
+        actions.put("setBridgeOverflowPolicy", new Action(false) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                NativeToJsMessageQueue.OverflowPolicy policy;
+                try {
+                    policy = NativeToJsMessageQueue.OverflowPolicy.valueOf(data.getString(0).toUpperCase(Locale.US));
+                } catch (IllegalArgumentException e) {
+                    sendResult(callbackContext, "Unknown overflow policy: " + data.getString(0), false);
+                    return;
+                }
+                long blockTimeoutMs = data.optLong(1, DEFAULT_BLOCK_TIMEOUT_MS);
+                webView.getNativeToJsMessageQueue().setOverflowPolicy(getServiceName(), policy, blockTimeoutMs);
+                sendResult(callbackContext, "Overflow policy set to " + policy, true);
+            }
+        });
+
+        actions.put("getBridgeStats", new Action(false) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                sendResult(callbackContext, webView.getNativeToJsMessageQueue().getStats().toString(), true);
+            }
+        });
 
         //Connect to MiBand
-        if (action.equals("connectBand")){
-            cordova.getThreadPool().execute(new Runnable() {
-                public void run() {
-                    Log.d(TAG, "CONNECT BAND CALLED");
-                    if (!miBand.isConnected() && !miBand.isConnecting()) {
-                        miBand.connect(new ActionCallback() {
-                            @Override
-                            public void onSuccess(Object data) {
-                                Log.d(TAG, "Connected with Mi Band!");
-
-                                //Set Notify Listeners
-                                miBand.setSensorDataNotifyListener(new NotifyListener() {
-                                    @Override
-                                    public void onNotify(byte[] data) {
-                                        int counter=0, step=0, axis1=0, axis2=0, axis3 =0;
-                                        if((data.length - 2) % 6 != 0) {
-                                            Log.e(TAG,"GOT UNEXPECTED SENSOR DATA WITH LENGTH: " + data.length);
-                                            for (byte b : data) {
-                                                Log.e(TAG,"DATA: " + String.format("0x%4x", b));
+        actions.put("connectBand", new Action(true) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        Log.d(TAG, "CONNECT BAND CALLED");
+                        if (!miBand.isConnected() && !miBand.isConnecting()) {
+                            miBand.connect(new ActionCallback() {
+                                @Override
+                                public void onSuccess(Object data) {
+                                    Log.d(TAG, "Connected with Mi Band!");
+
+                                    //Set Notify Listeners
+                                    miBand.setSensorDataNotifyListener(new NotifyListener() {
+                                        @Override
+                                        public void onNotify(byte[] data) {
+                                            SensorStream stream = sensorStream;
+                                            if (stream != null) {
+                                                stream.onNotify(data);
+                                                return;
                                             }
-                                        } else {
-                                            counter = (data[0] & 0xff) | ((data[1] & 0xff) << 8);
-                                            for (int idx = 0; idx < ((data.length - 2) / 6); idx++) {
-                                                step = idx * 6;
-                                                axis1 = (data[step+2] & 0xff) | ((data[step+3] & 0xff) << 8);
-                                                axis2 = (data[step+4] & 0xff) | ((data[step+5] & 0xff) << 8);
-                                                axis3 = (data[step+6] & 0xff) | ((data[step+7] & 0xff) << 8);
+                                            int counter=0, step=0, axis1=0, axis2=0, axis3 =0;
+                                            if((data.length - 2) % 6 != 0) {
+                                                Log.e(TAG,"GOT UNEXPECTED SENSOR DATA WITH LENGTH: " + data.length);
+                                                for (byte b : data) {
+                                                    Log.e(TAG,"DATA: " + String.format("0x%4x", b));
+                                                }
+                                            } else {
+                                                counter = (data[0] & 0xff) | ((data[1] & 0xff) << 8);
+                                                for (int idx = 0; idx < ((data.length - 2) / 6); idx++) {
+                                                    step = idx * 6;
+                                                    axis1 = (data[step+2] & 0xff) | ((data[step+3] & 0xff) << 8);
+                                                    axis2 = (data[step+4] & 0xff) | ((data[step+5] & 0xff) << 8);
+                                                    axis3 = (data[step+6] & 0xff) | ((data[step+7] & 0xff) << 8);
+                                                }
+
+                                                String msg="a1:"+Integer.toString(axis1)+" | a2:"+Integer.toString(axis2)+" | a3:"+Integer.toString(axis3)+";";
+                                                Log.d(TAG,msg);
+                                                CallbackContext live = liveSensorCallbackContext;
+                                                sendLiveResult(live != null ? live : callbackContext, msg, true);
                                             }
+                                        }
+                                    });
 
-                                            String msg="a1:"+Integer.toString(axis1)+" | a2:"+Integer.toString(axis2)+" | a3:"+Integer.toString(axis3)+";";
-                                            Log.d(TAG,msg);
-                                            sendResult(callbackContext, msg, true);
+                                    miBand.setRealtimeStepsNotifyListener(new RealtimeStepsNotifyListener() {
+                                        @Override
+                                        public void onNotify(int steps) {
+                                            CallbackContext live = liveStepsCallbackContext;
+                                            sendLiveResult(live != null ? live : callbackContext, Integer.toString(steps), true);
                                         }
-                                    }
-                                });
+                                    });
 
-                                miBand.setRealtimeStepsNotifyListener(new RealtimeStepsNotifyListener() {
-                                    @Override
-                                    public void onNotify(int steps) {
-                                        sendResult(callbackContext, Integer.toString(steps), true);
-                                    }
-                                });
 
+                                    sendLiveResult(callbackContext, "Connected to " + miBand.getAddress(), true);
 
-                                sendResult(callbackContext, "Connected to " + miBand.getAddress(), true);
+                                }
 
+                                @Override
+                                public void onFail(int errorCode, String msg) {
+                                    Log.d(TAG, "Connection failed: " + msg);
+                                    resetSensorStream();
+                                    sendLiveResult(callbackContext, "Disconnected from "+miBand.getAddress(), false);
+                                }
+                            });
+                        }
+                        else {
+                            if (miBand.isConnected()){
+                                miBand.disconnect();
+                                resetSensorStream();
+                                sendLiveResult(callbackContext, "Disconnected from " + miBand.getAddress(), true);
                             }
 
-                            @Override
-                            public void onFail(int errorCode, String msg) {
-                                Log.d(TAG, "Connection failed: " + msg);
-                                sendResult(callbackContext, "Disconnected from "+miBand.getAddress(), false);
-                            }
-                        });
-                    }
-                    else {
-                        if (miBand.isConnected()){
-                            miBand.disconnect();
-                            sendResult(callbackContext, "Disconnected from " + miBand.getAddress(), true);
                         }
-
                     }
-                }
-            });
-            return true;
-        }
+                });
+            }
+        });
 
-        if (action.equals("enableSensorDataNotify")) {
-            cordova.getThreadPool().execute(new Runnable() {
-                public void run() {
-                    Log.d(TAG, "GET LIVE SENSOR CALLED");
+        actions.put("enableSensorDataNotify", new Action(true) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        Log.d(TAG, "GET LIVE SENSOR CALLED");
 
-                    sendResult(callbackContext, "Enable Realtime Sensor succeeded", true);
+                        sendLiveResult(callbackContext, "Enable Realtime Sensor succeeded", true);
 
-                    miBand.enableSensorDataNotify(new ActionCallback() {
-                        @Override
-                        public void onSuccess(Object data) {
-                            sendResult(callbackContext, "Enable Realtime Sensor succeeded", true);
-                        }
+                        miBand.enableSensorDataNotify(new ActionCallback() {
+                            @Override
+                            public void onSuccess(Object data) {
+                                sendResult(callbackContext, "Enable Realtime Sensor succeeded", true);
+                            }
 
-                        @Override
-                        public void onFail(int errorCode, String msg) {
-                            sendResult(callbackContext, "Enable Realtime Sensor failed", false);
-                        }
-                    });
+                            @Override
+                            public void onFail(int errorCode, String msg) {
+                                sendResult(callbackContext, "Enable Realtime Sensor failed", false);
+                            }
+                        });
 
-                }
-            });
+                    }
+                });
+            }
+        });
 
-            return true;
-        }
+        //streams all samples as ArrayBuffers, optional argument: the flush interval in ms
+        actions.put("enableSensorStream", new Action(true) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                final long flushIntervalMs = data.optLong(0, SensorStream.DEFAULT_FLUSH_INTERVAL_MS);
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        Log.d(TAG, "SENSOR STREAM CALLED");
+                        sensorStream = new SensorStream(callbackContext, flushIntervalMs);
+
+                        miBand.enableSensorDataNotify(new ActionCallback() {
+                            @Override
+                            public void onSuccess(Object data) {
+                            }
 
-        if (action.equals("disableSensorDataNotify")) {
-            cordova.getThreadPool().execute(new Runnable() {
-                public void run() {
-                    Log.d(TAG, "DISABLE LIVE SENSOR CALLED");
-                    miBand.disableSensorDataNotify(new ActionCallback() {
-                        @Override
-                        public void onSuccess(Object data) {
-                            sendResult(callbackContext, "Disable Realtime Sensor succeeded", true);
-                        }
+                            @Override
+                            public void onFail(int errorCode, String msg) {
+                                sensorStream = null;
+                                sendResult(callbackContext, "Enable Sensor Stream failed", false);
+                            }
+                        });
+                    }
+                });
+            }
+        });
 
-                        @Override
-                        public void onFail(int errorCode, String msg) {
-                            sendResult(callbackContext, "Disable Realtime Sensor failed", false);
-                        }
-                    });
+        actions.put("disableSensorStream", new Action(true) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                SensorStream stream = sensorStream;
+                sensorStream = null;
+                if (stream != null) {
+                    stream.reset();
+                    Log.d(TAG, "Sensor stream stopped: " + stream);
                 }
-            });
-            return true;
-        }
-
-        if (action.equals("enableLiveStepsNotify")) {
-            cordova.getThreadPool().execute(new Runnable() {
-                public void run() {
-                    Log.d(TAG, "GET LIVE STEPS CALLED");
-                    miBand.enableRealtimeStepsNotify(new ActionCallback() {
-                        @Override
-                        public void onSuccess(Object data) {
-                            sendResult(callbackContext, "Enable Realtime Steps succeeded", true);
-                        }
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        miBand.disableSensorDataNotify(new ActionCallback() {
+                            @Override
+                            public void onSuccess(Object data) {
+                                sendResult(callbackContext, "Disable Sensor Stream succeeded", true);
+                            }
 
-                        @Override
-                        public void onFail(int errorCode, String msg) {
-                            sendResult(callbackContext, "Enable Realtime Steps failed", false);
-                        }
-                    });
-                }
-            });
-            return true;
-        }
+                            @Override
+                            public void onFail(int errorCode, String msg) {
+                                sendResult(callbackContext, "Disable Sensor Stream failed", false);
+                            }
+                        });
+                    }
+                });
+            }
+        });
 
-        if (action.equals("disableLiveStepsNotify")) {
-            cordova.getThreadPool().execute(new Runnable() {
-                public void run() {
-                    Log.d(TAG, "DISABLE LIVE STEPS CALLED");
-                    miBand.disableRealtimeStepsNotify(new ActionCallback() {
-                        @Override
-                        public void onSuccess(Object data) {
-                            sendResult(callbackContext, "Disable Realtime Steps succeeded", true);
-                        }
+        actions.put("disableSensorDataNotify", new Action(true) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        Log.d(TAG, "DISABLE LIVE SENSOR CALLED");
+                        miBand.disableSensorDataNotify(new ActionCallback() {
+                            @Override
+                            public void onSuccess(Object data) {
+                                sendResult(callbackContext, "Disable Realtime Sensor succeeded", true);
+                            }
 
-                        @Override
-                        public void onFail(int errorCode, String msg) {
-                            sendResult(callbackContext, "Disable Realtime Steps failed", false);
-                        }
-                    });
-                }
-            });
-            return true;
-        }
+                            @Override
+                            public void onFail(int errorCode, String msg) {
+                                sendResult(callbackContext, "Disable Realtime Sensor failed", false);
+                            }
+                        });
+                    }
+                });
+            }
+        });
 
-        if (action.equals("getLiveStepCount")) {
-            cordova.getThreadPool().execute(new Runnable() {
-                public void run() {
-                    Log.d(TAG, "GET LIVE STEPCOUNT CALLED");
-                    if (miBand.isConnected()) {
-                        miBand.readCurrentStepCount(new ActionCallback() {
+        actions.put("enableLiveStepsNotify", new Action(true) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        Log.d(TAG, "GET LIVE STEPS CALLED");
+                        miBand.enableRealtimeStepsNotify(new ActionCallback() {
                             @Override
                             public void onSuccess(Object data) {
-                                int steps = (int) data;
-                                sendResult(callbackContext, Integer.toString(steps), true);
+                                sendResult(callbackContext, "Enable Realtime Steps succeeded", true);
                             }
 
                             @Override
                             public void onFail(int errorCode, String msg) {
-                                sendResult(callbackContext, "Read live step count failed", false);
+                                sendResult(callbackContext, "Enable Realtime Steps failed", false);
                             }
                         });
-                    } else {
-                        sendResult(callbackContext, "Mi Band is not connected", false);
                     }
-                }
-            });
-            return true;
-        }
+                });
+            }
+        });
 
-        if (action.equals("getBatteryInfo")) {
-            cordova.getThreadPool().execute(new Runnable() {
-                public void run() {
-                    Log.d(TAG, "GET BATTERY INFO CALLED");
-                    if (miBand.isConnected()) {
-                        miBand.getBatteryInfo(new ActionCallback() {
+        actions.put("disableLiveStepsNotify", new Action(true) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        Log.d(TAG, "DISABLE LIVE STEPS CALLED");
+                        miBand.disableRealtimeStepsNotify(new ActionCallback() {
                             @Override
-                            public void onSuccess(final Object data) {
-                                BatteryInfo battery = (BatteryInfo) data;
-                                //get the cycle count, the level and other information
-                                sendResult(callbackContext, battery.toString(), true);
+                            public void onSuccess(Object data) {
+                                sendResult(callbackContext, "Disable Realtime Steps succeeded", true);
                             }
 
                             @Override
                             public void onFail(int errorCode, String msg) {
-                                sendResult(callbackContext, msg, false);
+                                sendResult(callbackContext, "Disable Realtime Steps failed", false);
                             }
                         });
+                    }
+                });
+            }
+        });
+
+        actions.put("getLiveStepCount", new Action(true) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        Log.d(TAG, "GET LIVE STEPCOUNT CALLED");
+                        if (miBand.isConnected()) {
+                            miBand.readCurrentStepCount(new ActionCallback() {
+                                @Override
+                                public void onSuccess(Object data) {
+                                    int steps = (int) data;
+                                    sendResult(callbackContext, Integer.toString(steps), true);
+                                }
+
+                                @Override
+                                public void onFail(int errorCode, String msg) {
+                                    sendResult(callbackContext, "Read live step count failed", false);
+                                }
+                            });
+                        } else {
+                            sendResult(callbackContext, "Mi Band is not connected", false);
+                        }
+                    }
+                });
+            }
+        });
 
-                        sendResult(callbackContext, "", false);
-                    } else {
-                        sendResult(callbackContext, "Mi Band is not connected", false);
+        actions.put("getBatteryInfo", new Action(true) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        Log.d(TAG, "GET BATTERY INFO CALLED");
+                        if (miBand.isConnected()) {
+                            miBand.getBatteryInfo(new ActionCallback() {
+                                @Override
+                                public void onSuccess(final Object data) {
+                                    BatteryInfo battery = (BatteryInfo) data;
+                                    //get the cycle count, the level and other information
+                                    sendResult(callbackContext, battery.toString(), true);
+                                }
+
+                                @Override
+                                public void onFail(int errorCode, String msg) {
+                                    sendResult(callbackContext, msg, false);
+                                }
+                            });
+
+                            sendResult(callbackContext, "", false);
+                        } else {
+                            sendResult(callbackContext, "Mi Band is not connected", false);
+                        }
                     }
+                });
+            }
+        });
+
+        actions.put("getSyncStats", new Action(true) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                SyncStats stats = miBand.getSyncStats();
+                if (stats != null) {
+                    sendResult(callbackContext, stats.toJSON().toString(), true);
+                } else {
+                    sendResult(callbackContext, "Mi Band is not connected", false);
                 }
-            });
-            return true;
-        }
+            }
+        });
+
+        actions.put("getPoolStats", new Action(false) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                sendResult(callbackContext, MiBandPool.getInstance(applicationContext).getStats().toString(), true);
+            }
+        });
+
+        actions.put("getHandshakeStats", new Action(true) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                sendResult(callbackContext, miBand.getHandshakeStats().toJSON().toString(), true);
+            }
+        });
+
+        actions.put("getNotificationStats", new Action(true) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                NotificationDispatcher dispatcher = miBand.getNotificationDispatcher();
+                if (dispatcher != null) {
+                    sendResult(callbackContext, dispatcher.toJSON().toString(), true);
+                } else {
+                    sendResult(callbackContext, "Mi Band is not connected", false);
+                }
+            }
+        });
 
         // Synchronize MiBand
-        if (action.equals("synchronizeBand")) {
-            cordova.getThreadPool().execute(new Runnable() {
-                public void run() {
-                    Log.d(TAG, "SYNCHRONIZE BAND CALLED");
-                    if (miBand.isConnected()) {
-                        synchronizeMiBand(miBand,callbackContext);
-                    } else {
-                        sendResult(callbackContext, "Mi Band is not connected", false);
+        actions.put("synchronizeBand", new Action(true) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                cordova.getThreadPool().execute(new Runnable() {
+                    public void run() {
+                        Log.d(TAG, "SYNCHRONIZE BAND CALLED");
+                        if (miBand.isConnected()) {
+                            synchronizeMiBand(miBand,callbackContext);
+                        } else {
+                            sendResult(callbackContext, "Mi Band is not connected", false);
+                        }
                     }
-                }
-            });
-            return true;
-        }
+                });
+            }
+        });
 
-        return false;
+        actions.put("getActionStats", new Action(false) {
+            @Override
+            public void execute(final JSONArray data, final CallbackContext callbackContext, final MiBand miBand) throws JSONException {
+                sendResult(callbackContext, actionLatency.toJSON().toString(), true);
+            }
+        });
     }
 }
@@ -0,0 +1,168 @@
+package de.max.miband.plugins;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import de.max.miband.NotifyListener;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Collects every sample of the sensor data packets in a window and sends it to JavaScript as an
+ * ArrayBuffer once per flush interval (or when the window is full). A timer sends the last window
+ * when the packets stop.
+ * <p>
+ * A packet starts with a 16 bit counter followed by triplets of 16 bit axis values.
+ * Each message is little endian:
+ * <pre>
+ * uint16 counter of the first packet
+ * uint16 packets in the window
+ * uint16 samples in the window
+ * uint16 packets missed in the window (gaps of the counter)
+ * int16[3 * samples] axis1, axis2, axis3 of each sample, raw as sent by the band
+ * </pre>
+ */
+public class SensorStream implements NotifyListener {
+
+    private static final String TAG = SensorStream.class.getSimpleName();
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 100;
+    public static final int MAX_SAMPLES = 512;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int AXES = 3;
+
+    private final CallbackContext callbackContext;
+    private final long flushIntervalMs;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flushTimer = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final short[] samples = new short[MAX_SAMPLES * AXES];
+    private int sampleCount;
+    private int packetCount;
+    private int firstCounter;
+    private int windowMissedPackets;
+    private long windowStartedAt;
+
+    //-1 until the first packet
+    private int lastCounter = -1;
+
+    private long packets;
+    private long missedPackets;
+    private long gaps;
+    private long malformedPackets;
+    private long messages;
+
+    public SensorStream(CallbackContext callbackContext, long flushIntervalMs) {
+        this.callbackContext = callbackContext;
+        this.flushIntervalMs = flushIntervalMs > 0 ? flushIntervalMs : DEFAULT_FLUSH_INTERVAL_MS;
+    }
+
+    @Override
+    public synchronized void onNotify(byte[] data) {
+        if (data.length < 2 || (data.length - 2) % 6 != 0) {
+            malformedPackets++;
+            Log.e(TAG, "GOT UNEXPECTED SENSOR DATA WITH LENGTH: " + data.length);
+            return;
+        }
+
+        int counter = (data[0] & 0xff) | ((data[1] & 0xff) << 8);
+        int missed = lastCounter < 0 ? 0 : (counter - lastCounter - 1) & 0xffff;
+        if (missed != 0) {
+            gaps++;
+            missedPackets += missed;
+            Log.w(TAG, "sensor data gap: " + missed + " packet(s) missed before " + counter);
+        }
+        lastCounter = counter;
+        packets++;
+
+        int packetSamples = (data.length - 2) / 6;
+        if (sampleCount + packetSamples > MAX_SAMPLES) {
+            flush();
+        }
+
+        if (packetCount == 0) {
+            firstCounter = counter;
+            windowStartedAt = SystemClock.elapsedRealtime();
+            handler.postDelayed(flushTimer, flushIntervalMs);
+        }
+        packetCount++;
+        windowMissedPackets += missed;
+
+        int offset = sampleCount * AXES;
+        for (int i = 2; i < data.length; i += 2) {
+            samples[offset++] = (short) ((data[i] & 0xff) | ((data[i + 1] & 0xff) << 8));
+        }
+        sampleCount += packetSamples;
+
+        if (SystemClock.elapsedRealtime() - windowStartedAt >= flushIntervalMs) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the collected samples, if there are any
+     */
+    public synchronized void flush() {
+        handler.removeCallbacks(flushTimer);
+        if (packetCount == 0) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + sampleCount * AXES * 2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) firstCounter);
+        buffer.putShort((short) packetCount);
+        buffer.putShort((short) sampleCount);
+        buffer.putShort((short) Math.min(windowMissedPackets, 0xffff));
+        buffer.asShortBuffer().put(samples, 0, sampleCount * AXES);
+
+        PluginResult result = new PluginResult(PluginResult.Status.OK, buffer.array());
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+        messages++;
+
+        sampleCount = 0;
+        packetCount = 0;
+        windowMissedPackets = 0;
+    }
+
+    /**
+     * Sends the collected samples and forgets the counter, e.g. because the band has disconnected,
+     * so the first packet after a reconnection is not counted as a gap
+     */
+    public synchronized void reset() {
+        flush();
+        lastCounter = -1;
+    }
+
+    public synchronized long getMissedPackets() {
+        return missedPackets;
+    }
+
+    public synchronized long getGaps() {
+        return gaps;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SensorStream{" +
+                "packets=" + packets +
+                ", messages=" + messages +
+                ", gaps=" + gaps +
+                ", missedPackets=" + missedPackets +
+                ", malformedPackets=" + malformedPackets +
+                '}';
+    }
+}
@@ -0,0 +1,240 @@
+package de.max.miband.sqlite;
+
+import android.content.Context;
+import android.util.Log;
+
+import de.max.miband.models.ActivityData;
+import de.max.miband.models.ActivityKind;
+import de.max.miband.models.ActivityRecord;
+import de.max.miband.models.ActivityVisitor;
+
+/**
+ * Keeps the most recent minutes of the {@link ActivityData#PROVIDER_MIBAND} (the first band) in memory, one primitive
+ * array per column, ordered by timestamp. It is loaded lazily from the {@link ActivitySQLite} and
+ * appended to by the {@link ActivityWriter} after each commit.
+ * At most {@link #getCapacityDays()} days of minutes are kept, the oldest ones are dropped first.
+ */
+public class ActivityCache {
+
+    private static final String TAG = ActivityCache.class.getSimpleName();
+
+    public static final int DEFAULT_CAPACITY_DAYS = 7;
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    private static ActivityCache instance;
+
+    private final Context context;
+
+    private int capacityDays;
+    private int[] timestamps;
+    private byte[] steps;
+    private byte[] intensities;
+    private byte[] types;
+    private int size;
+
+    private boolean loaded;
+    //the cache holds every stored minute from this timestamp on
+    private int completeFrom;
+
+    private final ActivityRecord record = new ActivityRecord();
+
+    public synchronized static ActivityCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ActivityCache(context.getApplicationContext(), DEFAULT_CAPACITY_DAYS);
+        }
+        return instance;
+    }
+
+    private ActivityCache(Context context, int capacityDays) {
+        this.context = context;
+        allocate(capacityDays);
+    }
+
+    private void allocate(int capacityDays) {
+        int capacity = capacityDays * MINUTES_PER_DAY;
+        this.capacityDays = capacityDays;
+        timestamps = new int[capacity];
+        steps = new byte[capacity];
+        intensities = new byte[capacity];
+        types = new byte[capacity];
+        size = 0;
+        loaded = false;
+    }
+
+    public synchronized int getCapacityDays() {
+        return capacityDays;
+    }
+
+    /**
+     * Changes the number of cached days (about 10kB per day, 7 bytes per minute), the cache is loaded again on the next access
+     */
+    public synchronized void setCapacityDays(int capacityDays) {
+        if (capacityDays < 1) {
+            throw new IllegalArgumentException("capacityDays must be at least 1");
+        }
+        if (capacityDays != this.capacityDays) {
+            allocate(capacityDays);
+        }
+    }
+
+    /**
+     * Forgets all minutes, they are loaded again on the next access
+     */
+    public synchronized void invalidate() {
+        size = 0;
+        loaded = false;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Streams the cached minutes between the two timestamps (inclusive) of the given type(s)
+     * to the visitor, without allocating per minute.
+     *
+     * @param timestamp_from : time in seconds from date
+     * @param timestamp_to   : time in seconds to date
+     * @param activityTypes  combination of #TYPE_DEEP_SLEEP, #TYPE_LIGHT_SLEEP, #TYPE_ACTIVITY
+     * @return the number of visited minutes, or -1 if the range is not completely cached
+     */
+    public synchronized int visit(long timestamp_from, long timestamp_to, int activityTypes, ActivityVisitor visitor) {
+        ensureLoaded();
+        if (timestamp_from < completeFrom) {
+            return -1;
+        }
+
+        boolean allTypes = (activityTypes & ActivityKind.TYPE_ALL) == ActivityKind.TYPE_ALL;
+        byte[] dbTypes = allTypes ? null : ActivityKind.mapToDBActivityTypes(activityTypes);
+
+        int visited = 0;
+        for (int i = lowerBound(timestamp_from); i < size && timestamps[i] <= timestamp_to; i++) {
+            if (!allTypes && !contains(dbTypes, types[i])) {
+                continue;
+            }
+            record.set(timestamps[i], ActivityData.PROVIDER_MIBAND, intensities[i], steps[i] & 0xff, types[i]);
+            visited++;
+            if (!visitor.visit(record)) {
+                break;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Adds the committed minutes of the batch. Minutes which are already cached are replaced,
+     * like the database does on conflict.
+     */
+    synchronized void append(ActivityWriter.Batch batch) {
+        //not loaded yet, the committed minutes are read from the database on the first access
+        if (!loaded || batch.provider != ActivityData.PROVIDER_MIBAND) {
+            return;
+        }
+
+        int timestamp = batch.timestamp;
+        byte[] data = batch.data;
+        int end = batch.offset + batch.length - batch.length % 3;
+        for (int i = batch.offset; i < end; i += 3) {
+            put(timestamp, data[i + 2], data[i + 1], data[i]);
+            timestamp += 60;
+        }
+    }
+
+    private void put(int timestamp, byte minuteSteps, byte intensity, byte type) {
+        int index;
+        if (size == 0 || timestamp > timestamps[size - 1]) {
+            index = size;
+        } else {
+            index = lowerBound(timestamp);
+            if (index < size && timestamps[index] == timestamp) {
+                set(index, timestamp, minuteSteps, intensity, type);
+                return;
+            }
+            if (index == 0 && timestamp < completeFrom) {
+                //older than anything we keep
+                return;
+            }
+        }
+
+        if (size == timestamps.length) {
+            //drop the oldest quarter at once, so appending stays cheap
+            int dropped = Math.max(1, size / 4);
+            shift(dropped, 0, size - dropped);
+            size -= dropped;
+            index -= dropped;
+            completeFrom = timestamps[0];
+            if (index < 0) {
+                //older than anything we keep
+                return;
+            }
+        }
+
+        if (index < size) {
+            shift(index, index + 1, size - index);
+        }
+        set(index, timestamp, minuteSteps, intensity, type);
+        size++;
+    }
+
+    private void set(int index, int timestamp, byte minuteSteps, byte intensity, byte type) {
+        timestamps[index] = timestamp;
+        steps[index] = minuteSteps;
+        intensities[index] = intensity;
+        types[index] = type;
+    }
+
+    private void shift(int from, int to, int length) {
+        System.arraycopy(timestamps, from, timestamps, to, length);
+        System.arraycopy(steps, from, steps, to, length);
+        System.arraycopy(intensities, from, intensities, to, length);
+        System.arraycopy(types, from, types, to, length);
+    }
+
+    /**
+     * @return the index of the first cached minute at or after the given timestamp
+     */
+    private int lowerBound(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static boolean contains(byte[] values, byte value) {
+        for (byte v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+
+        size = 0;
+        completeFrom = (int) (System.currentTimeMillis() / 1000) - capacityDays * MINUTES_PER_DAY * 60;
+
+        ActivitySQLite.getInstance(context).visitStoredActivities(completeFrom, Integer.MAX_VALUE, ActivityKind.TYPE_ALL, new ActivityVisitor() {
+            @Override
+            public boolean visit(ActivityRecord sample) {
+                if (sample.getProvider() == ActivityData.PROVIDER_MIBAND) {
+                    put(sample.getTimestamp(), (byte) sample.getSteps(), (byte) sample.getIntensity(), sample.getType());
+                }
+                return true;
+            }
+        });
+
+        loaded = true;
+        Log.d(TAG, "loaded " + size + " minute(s) of " + capacityDays + " day(s)");
+    }
+}
@@ -0,0 +1,228 @@
+package de.max.miband.sqlite;
+
+import android.content.Context;
+import android.util.Log;
+
+import de.max.miband.models.ActivityAggregate;
+import de.max.miband.models.ActivityData;
+import de.max.miband.models.ActivityKind;
+import de.max.miband.models.ActivityRecord;
+import de.max.miband.models.ActivityVisitor;
+
+/**
+ * Segment tree over the most recent {@link #WINDOW_MINUTES} minutes of the {@link ActivityData#PROVIDER_MIBAND}
+ * (the first band), answering step and intensity sums, maxima and the number of active minutes of any range
+ * inside the window in O(log n). The leaves are a ring indexed by minute, so moving the window
+ * forward only clears the leaves of the skipped minutes.
+ * It is loaded lazily from the {@link ActivitySQLite} and updated by the {@link ActivityWriter} after each commit.
+ * Intensities are treated as unsigned values.
+ */
+public class ActivityRangeIndex {
+
+    private static final String TAG = ActivityRangeIndex.class.getSimpleName();
+
+    //a power of two, about 11 days, so rolling weeks are always answered from memory
+    public static final int WINDOW_MINUTES = 1 << 14;
+    private static final int MASK = WINDOW_MINUTES - 1;
+
+    private static ActivityRangeIndex instance;
+
+    private final Context context;
+
+    //node i has the children 2i and 2i+1, the leaves start at WINDOW_MINUTES
+    private final int[] stepSums = new int[2 * WINDOW_MINUTES];
+    private final int[] intensitySums = new int[2 * WINDOW_MINUTES];
+    private final short[] maxSteps = new short[2 * WINDOW_MINUTES];
+    private final short[] maxIntensities = new short[2 * WINDOW_MINUTES];
+    private final short[] activeMinutes = new short[2 * WINDOW_MINUTES];
+
+    private boolean loaded;
+    //the newest minute (timestamp / 60) inside the window
+    private int newestMinute;
+
+    public synchronized static ActivityRangeIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new ActivityRangeIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ActivityRangeIndex(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Returns the aggregate of all minutes between the two timestamps (inclusive). Ranges inside
+     * the window are answered by the index, older ones are streamed from the database.
+     *
+     * @param timestamp_from : time in seconds from date
+     * @param timestamp_to   : time in seconds to date
+     */
+    public ActivityAggregate getAggregate(long timestamp_from, long timestamp_to) {
+        ActivityAggregate aggregate = query(timestamp_from, timestamp_to);
+        if (aggregate != null) {
+            return aggregate;
+        }
+
+        Log.d(TAG, "range " + timestamp_from + " - " + timestamp_to + " is not indexed, reading the database");
+        final ActivityAggregate scanned = new ActivityAggregate(timestamp_from, timestamp_to);
+        ActivitySQLite.getInstance(context).visitActivitiesSample(timestamp_from, timestamp_to, ActivityKind.TYPE_ALL, new ActivityVisitor() {
+            @Override
+            public boolean visit(ActivityRecord record) {
+                scanned.add(record.getSteps(), record.getIntensity() & 0xff);
+                return true;
+            }
+        });
+        return scanned;
+    }
+
+    /**
+     * Returns the aggregate of all minutes between the two timestamps (inclusive)
+     *
+     * @return the aggregate, or null if the range starts before the indexed window
+     */
+    public synchronized ActivityAggregate query(long timestamp_from, long timestamp_to) {
+        ensureLoaded();
+
+        ActivityAggregate aggregate = new ActivityAggregate(timestamp_from, timestamp_to);
+        long fromMinute = timestamp_from / 60;
+        long toMinute = Math.min(timestamp_to / 60, newestMinute);
+
+        if (fromMinute <= newestMinute - WINDOW_MINUTES) {
+            return null;
+        }
+        if (fromMinute > toMinute) {
+            return aggregate;
+        }
+
+        int fromSlot = (int) (fromMinute & MASK);
+        int toSlot = (int) (toMinute & MASK);
+        if (fromSlot <= toSlot) {
+            queryLeaves(fromSlot, toSlot, aggregate);
+        } else {
+            //the range wraps around the end of the ring
+            queryLeaves(fromSlot, WINDOW_MINUTES - 1, aggregate);
+            queryLeaves(0, toSlot, aggregate);
+        }
+        return aggregate;
+    }
+
+    /**
+     * Forgets the window, it is loaded again on the next access
+     */
+    public synchronized void invalidate() {
+        loaded = false;
+    }
+
+    /**
+     * Adds the committed minutes of the batch, replacing minutes which are already indexed
+     */
+    synchronized void append(ActivityWriter.Batch batch) {
+        //not loaded yet, the committed minutes are read from the database on the first access
+        if (!loaded || batch.provider != ActivityData.PROVIDER_MIBAND) {
+            return;
+        }
+
+        int timestamp = batch.timestamp;
+        byte[] data = batch.data;
+        int end = batch.offset + batch.length - batch.length % 3;
+        for (int i = batch.offset; i < end; i += 3) {
+            put(timestamp / 60, data[i + 2] & 0xff, data[i + 1] & 0xff);
+            timestamp += 60;
+        }
+    }
+
+    private void put(int minute, int steps, int intensity) {
+        if (minute <= newestMinute - WINDOW_MINUTES) {
+            //too old for the window
+            return;
+        }
+
+        if (minute > newestMinute) {
+            if (minute - newestMinute >= WINDOW_MINUTES) {
+                clear();
+            } else {
+                for (int skipped = newestMinute + 1; skipped < minute; skipped++) {
+                    setLeaf(skipped & MASK, 0, 0);
+                }
+            }
+            newestMinute = minute;
+        }
+
+        setLeaf(minute & MASK, steps, intensity);
+    }
+
+    private void setLeaf(int slot, int steps, int intensity) {
+        int node = slot + WINDOW_MINUTES;
+        stepSums[node] = steps;
+        intensitySums[node] = intensity;
+        maxSteps[node] = (short) steps;
+        maxIntensities[node] = (short) intensity;
+        activeMinutes[node] = (short) (steps > 0 ? 1 : 0);
+
+        for (node >>= 1; node > 0; node >>= 1) {
+            int left = 2 * node;
+            int right = left + 1;
+            stepSums[node] = stepSums[left] + stepSums[right];
+            intensitySums[node] = intensitySums[left] + intensitySums[right];
+            maxSteps[node] = (short) Math.max(maxSteps[left], maxSteps[right]);
+            maxIntensities[node] = (short) Math.max(maxIntensities[left], maxIntensities[right]);
+            activeMinutes[node] = (short) (activeMinutes[left] + activeMinutes[right]);
+        }
+    }
+
+    /**
+     * Adds the leaves fromSlot to toSlot (inclusive) to the aggregate
+     */
+    private void queryLeaves(int fromSlot, int toSlot, ActivityAggregate aggregate) {
+        int left = fromSlot + WINDOW_MINUTES;
+        int right = toSlot + WINDOW_MINUTES + 1;
+        while (left < right) {
+            if ((left & 1) == 1) {
+                addNode(left++, aggregate);
+            }
+            if ((right & 1) == 1) {
+                addNode(--right, aggregate);
+            }
+            left >>= 1;
+            right >>= 1;
+        }
+    }
+
+    private void addNode(int node, ActivityAggregate aggregate) {
+        aggregate.add(stepSums[node], intensitySums[node], maxSteps[node], maxIntensities[node], activeMinutes[node]);
+    }
+
+    private void clear() {
+        for (int i = 0; i < stepSums.length; i++) {
+            stepSums[i] = 0;
+            intensitySums[i] = 0;
+            maxSteps[i] = 0;
+            maxIntensities[i] = 0;
+            activeMinutes[i] = 0;
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+
+        clear();
+        newestMinute = (int) (System.currentTimeMillis() / 1000 / 60);
+        long from = (long) (newestMinute - WINDOW_MINUTES + 1) * 60;
+
+        int minutes = ActivitySQLite.getInstance(context).visitActivitiesSample(from, Integer.MAX_VALUE, ActivityKind.TYPE_ALL, new ActivityVisitor() {
+            @Override
+            public boolean visit(ActivityRecord record) {
+                if (record.getProvider() == ActivityData.PROVIDER_MIBAND) {
+                    put(record.getTimestamp() / 60, record.getSteps(), record.getIntensity() & 0xff);
+                }
+                return true;
+            }
+        });
+
+        loaded = true;
+        Log.d(TAG, "indexed " + minutes + " minute(s)");
+    }
+}
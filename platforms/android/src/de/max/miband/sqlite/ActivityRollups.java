@@ -0,0 +1,159 @@
+package de.max.miband.sqlite;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import de.max.miband.models.ActivityData;
+
+import java.util.Calendar;
+
+/**
+ * Maintains the hourly and daily rollups of the activities table.
+ * A bucket is always recomputed from its source rows instead of adding deltas, so minutes that
+ * are replaced on conflict (e.g. a block that is synced twice) are never counted twice.
+ * Hours are rebuilt from the minute rows, days from the hourly rows.
+ * Buckets start at the local hour / local midnight, in seconds.
+ */
+public class ActivityRollups {
+
+    public static final String TABLE_HOURLY = "ActivitiesHourly";
+    public static final String TABLE_DAILY = "ActivitiesDaily";
+
+    private static final String TOTALS_COLUMNS = "steps INT, "
+            + "active_minutes INT, "
+            + "deep_sleep_minutes INT, "
+            + "light_sleep_minutes INT, ";
+
+    public static final String CREATE_HOURLY_DB = "CREATE TABLE IF NOT EXISTS " + TABLE_HOURLY + " ("
+            + "timestamp INT, "
+            + "provider INT, "
+            + TOTALS_COLUMNS
+            + "PRIMARY KEY (timestamp, provider) ON CONFLICT REPLACE)";
+
+    public static final String CREATE_DAILY_DB = "CREATE TABLE IF NOT EXISTS " + TABLE_DAILY + " ("
+            + "timestamp INT, "
+            + "provider INT, "
+            + TOTALS_COLUMNS
+            + "PRIMARY KEY (timestamp, provider) ON CONFLICT REPLACE)";
+
+    public static final String DELETE_HOURLY_DB = "DROP TABLE IF EXISTS " + TABLE_HOURLY;
+    public static final String DELETE_DAILY_DB = "DROP TABLE IF EXISTS " + TABLE_DAILY;
+
+    //the GROUP BY makes sure an empty bucket does not insert a row of nulls
+    private static final String ROLLUP_HOUR = "INSERT INTO " + TABLE_HOURLY
+            + " (timestamp, provider, steps, active_minutes, deep_sleep_minutes, light_sleep_minutes)"
+            + " SELECT ?, provider, SUM(steps), SUM(steps > 0),"
+            + " SUM(type = " + ActivityData.TYPE_DEEP_SLEEP + "), SUM(type = " + ActivityData.TYPE_LIGHT_SLEEP + ")"
+            + " FROM " + ActivitySQLite.TABLE_NAME
+            + " WHERE provider=? AND timestamp>=? AND timestamp<? GROUP BY provider";
+
+    private static final String ROLLUP_DAY = "INSERT INTO " + TABLE_DAILY
+            + " (timestamp, provider, steps, active_minutes, deep_sleep_minutes, light_sleep_minutes)"
+            + " SELECT ?, provider, SUM(steps), SUM(active_minutes), SUM(deep_sleep_minutes), SUM(light_sleep_minutes)"
+            + " FROM " + TABLE_HOURLY
+            + " WHERE provider=? AND timestamp>=? AND timestamp<? GROUP BY provider";
+
+    private final SQLiteStatement rollupHour;
+    private final SQLiteStatement rollupDay;
+
+    /**
+     * Compiles the rollup statements, must be closed with {@link #close()}.
+     * Should be used inside the transaction that changed the minute rows.
+     */
+    public ActivityRollups(SQLiteDatabase db) {
+        rollupHour = db.compileStatement(ROLLUP_HOUR);
+        rollupDay = db.compileStatement(ROLLUP_DAY);
+    }
+
+    /**
+     * Recomputes every hour and day touched by the minutes between the two timestamps (inclusive)
+     *
+     * @param provider : the provider of the changed minutes
+     * @param from     : time in seconds of the first changed minute
+     * @param to       : time in seconds of the last changed minute
+     */
+    public void update(byte provider, int from, int to) {
+        int hour = getStartOfHour(from);
+        while (hour <= to) {
+            int nextHour = getStartOfHour(hour + 3600);
+            if (nextHour <= hour) {
+                //the repeated hour when daylight saving time ends
+                nextHour = hour + 3600;
+            }
+            execute(rollupHour, provider, hour, nextHour);
+            hour = nextHour;
+        }
+
+        int day = getStartOfDay(from);
+        while (day <= to) {
+            int nextDay = getStartOfNextDay(day);
+            execute(rollupDay, provider, day, nextDay);
+            day = nextDay;
+        }
+    }
+
+    public void close() {
+        rollupHour.close();
+        rollupDay.close();
+    }
+
+    private void execute(SQLiteStatement statement, byte provider, int from, int to) {
+        statement.bindLong(1, from);
+        statement.bindLong(2, provider);
+        statement.bindLong(3, from);
+        statement.bindLong(4, to);
+        statement.executeInsert();
+    }
+
+    /**
+     * Returns the start of the local hour of the given time, in seconds
+     */
+    public static int getStartOfHour(int timestamp) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timestamp * 1000L);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return (int) (calendar.getTimeInMillis() / 1000);
+    }
+
+    /**
+     * Returns the local midnight of the day of the given time, in seconds
+     */
+    public static int getStartOfDay(int timestamp) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timestamp * 1000L);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return (int) (calendar.getTimeInMillis() / 1000);
+    }
+
+    private static int getStartOfNextDay(int day) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(day * 1000L);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return getStartOfDay((int) (calendar.getTimeInMillis() / 1000));
+    }
+
+    /**
+     * Rebuilds the rollups of all stored activities, used when the rollup tables are created
+     * for an existing database.
+     */
+    public static void rebuild(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT provider, MIN(timestamp), MAX(timestamp) FROM "
+                + ActivitySQLite.TABLE_NAME + " GROUP BY provider", null);
+
+        ActivityRollups rollups = new ActivityRollups(db);
+        try {
+            while (cursor.moveToNext()) {
+                rollups.update((byte) cursor.getInt(0), cursor.getInt(1), cursor.getInt(2));
+            }
+        } finally {
+            cursor.close();
+            rollups.close();
+        }
+    }
+}
@@ -1,21 +1,20 @@
 package de.max.miband.sqlite;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.text.format.DateFormat;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
 import android.util.Log;
 
-import de.max.miband.DateUtils;
 import de.max.miband.models.ActivityData;
 import de.max.miband.models.ActivityKind;
+import de.max.miband.models.ActivityRecord;
+import de.max.miband.models.ActivityTotals;
+import de.max.miband.models.ActivityVisitor;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.TimeZone;
+import java.util.List;
 
 /**
  * Created by betomaluje on 7/9/15.
@@ -25,8 +24,14 @@ public class ActivitySQLite {
     private final String TAG = getClass().getSimpleName();
     public static final String TABLE_NAME = "Activities";
 
+    private static final String INSERT_ACTIVITY = "INSERT INTO " + TABLE_NAME
+            + " (timestamp, provider, intensity, steps, type) VALUES (?, ?, ?, ?, ?)";
+
     private Context context;
 
+    //range queries by activity types, see getRangeQueryFor()
+    private final String[] rangeQueries = new String[ActivityKind.TYPE_ALL + 1];
+
     private static ActivitySQLite instance;
 
     public static ActivitySQLite getInstance(Context context) {
@@ -37,49 +42,110 @@ public class ActivitySQLite {
     }
 
     public ActivitySQLite(Context context) {
-        this.context = context;
+        this.context = context.getApplicationContext();
     }
 
-    public boolean saveActivity(int timestamp, byte provider, short intensity, int steps, byte type) {
-        Calendar stepDate = Calendar.getInstance();
-        stepDate.setTimeInMillis(timestamp * 1000L);
-
-        Calendar currentDate = Calendar.getInstance();
-        currentDate.setTimeInMillis(System.currentTimeMillis());
-
-
-        //if (stepDate.before(currentDate) || true){
-            Log.d(TAG, "DATE::::::::::::"+DateUtils.convertString(stepDate)+" before "+DateUtils.convertString(currentDate));
-            MasterSQLiteHelper helperDB = new MasterSQLiteHelper(context);
-            SQLiteDatabase db = helperDB.getWritableDatabase();
-
-            Log.e(TAG, "saving Activity " + timestamp);
+    /**
+     * Opens the shared database, so the first query or sync does not pay for it
+     */
+    public void open() {
+        MasterSQLiteHelper.getInstance(context).getWritableDatabase();
+        checkQueryPlans();
+    }
 
-            ContentValues cv = new ContentValues();
-            cv.put("timestamp", timestamp);
-            cv.put("provider", provider);
-            cv.put("intensity", intensity);
-            cv.put("steps", steps);
-            cv.put("type", type);
+    /**
+     * Stores a whole buffer of raw activity data in a single transaction.
+     * Each minute is represented by a triplet of bytes (category, intensity, steps),
+     * the first minute starts at the given timestamp and each following one is 60 seconds later.
+     *
+     * @param timestamp : time in seconds of the first minute in the buffer
+     * @param provider  : the provider of the data, e.g. {@link ActivityData#PROVIDER_MIBAND}
+     * @param data      : the raw activity buffer
+     * @param offset    : index of the first byte to store
+     * @param length    : number of bytes to store, should be a multiple of 3
+     * @return the number of stored minutes
+     */
+    public int saveActivities(int timestamp, byte provider, byte[] data, int offset, int length) {
+        ArrayList<ActivityWriter.Batch> batches = new ArrayList<ActivityWriter.Batch>(1);
+        batches.add(new ActivityWriter.Batch(timestamp, provider, data, offset, length, null));
+        return Math.max(0, saveActivities(batches));
+    }
 
-            Calendar date = Calendar.getInstance();
-            date.setTimeInMillis(timestamp * 1000L);
+    /**
+     * Stores all given batches in a single transaction. The hourly and daily rollups of the
+     * touched time range are updated in the same transaction.
+     *
+     * @return the number of stored minutes, or -1 if the transaction failed and nothing was stored
+     */
+    int saveActivities(List<ActivityWriter.Batch> batches) {
+        long start = SystemClock.elapsedRealtime();
+        int rows = 0;
+
+        MasterSQLiteHelper helperDB = MasterSQLiteHelper.getInstance(context);
+        SQLiteDatabase db = helperDB.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement(INSERT_ACTIVITY);
+        ActivityRollups rollups = new ActivityRollups(db);
+
+        db.beginTransaction();
+        try {
+            //consecutive batches of the same provider are rolled up as one range
+            int rollupFrom = 0;
+            int rollupTo = 0;
+            byte rollupProvider = 0;
+            boolean hasRollup = false;
+
+            for (ActivityWriter.Batch batch : batches) {
+                int timestamp = batch.timestamp;
+                byte[] data = batch.data;
+                int end = batch.offset + batch.length - batch.length % 3;
+                for (int i = batch.offset; i < end; i += 3) {
+                    insert.bindLong(1, timestamp);
+                    insert.bindLong(2, batch.provider);
+                    insert.bindLong(3, data[i + 1]);
+                    insert.bindLong(4, data[i + 2] & 0xff);
+                    insert.bindLong(5, data[i]);
+
+                    if (insert.executeInsert() != -1) {
+                        rows++;
+                    }
+                    timestamp += 60;
+                }
+
+                if (timestamp == batch.timestamp) {
+                    continue;
+                }
+                int last = timestamp - 60;
+                if (hasRollup && batch.provider == rollupProvider
+                        && batch.timestamp <= rollupTo + 3600 && last >= rollupFrom - 3600) {
+                    rollupFrom = Math.min(rollupFrom, batch.timestamp);
+                    rollupTo = Math.max(rollupTo, last);
+                } else {
+                    if (hasRollup) {
+                        rollups.update(rollupProvider, rollupFrom, rollupTo);
+                    }
+                    rollupProvider = batch.provider;
+                    rollupFrom = batch.timestamp;
+                    rollupTo = last;
+                    hasRollup = true;
+                }
+            }
+            if (hasRollup) {
+                rollups.update(rollupProvider, rollupFrom, rollupTo);
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.e(TAG, "error saving activities", e);
+            rows = -1;
+        } finally {
+            db.endTransaction();
+            insert.close();
+            rollups.close();
+        }
 
-            String dateString = DateUtils.convertString(date);
-            Log.d(TAG, "INSERTED STEPS::::::::::::"+Integer.toString(steps)+ " ON "+dateString);
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.d(TAG, "saved " + rows + " activities in " + elapsed + " ms (" + (Math.max(0, rows) * 1000L / elapsed) + " rows/s)");
 
-            if (db.insert(TABLE_NAME, null, cv) != -1) {
-                Log.e(TAG, "Activity " + timestamp + " SUCCESS INSERTING DATA");
-                db.close();
-                return true;
-            } else {
-                db.close();
-                return false;
-            }
-        /*}else{
-            Log.d(TAG, "ERROR! NOT INSERTED STEPS::::::::::::"+timestamp+"("+(System.currentTimeMillis()/1000)+")");
-            return false;
-        }*/
+        return rows;
     }
 
     public ArrayList<ActivityData> getSleepSamples(long timestamp_from, long timestamp_to) {
@@ -99,7 +165,7 @@ public class ActivitySQLite {
      * Returns the most recent step
      */
     public ActivityData getMostRecentActivity() {
-        MasterSQLiteHelper helperDB = new MasterSQLiteHelper(context);
+        MasterSQLiteHelper helperDB = MasterSQLiteHelper.getInstance(context);
         SQLiteDatabase db = helperDB.getReadableDatabase();
 
         ActivityData activity = new ActivityData(0,(byte)0,(byte)0,(byte)0,(byte)0);
@@ -116,11 +182,102 @@ public class ActivitySQLite {
         }
 
         cursor.close();
-        db.close();
 
         return activity;
     }
 
+    /**
+     * Returns the timestamp of the most recent activity of the given provider
+     *
+     * @param provider : the provider of the data, e.g. {@link ActivityData#PROVIDER_MIBAND}
+     * @return the timestamp in seconds, or 0 if there is no activity yet
+     */
+    public int getMostRecentTimestamp(byte provider) {
+        MasterSQLiteHelper helperDB = MasterSQLiteHelper.getInstance(context);
+        SQLiteDatabase db = helperDB.getReadableDatabase();
+
+        int timestamp = 0;
+
+        Cursor cursor = db.rawQuery("SELECT timestamp FROM " + TABLE_NAME + " WHERE provider=? ORDER BY timestamp DESC LIMIT 1",
+                new String[]{String.valueOf(provider)});
+
+        if (cursor.moveToFirst()) {
+            timestamp = cursor.getInt(0);
+        }
+
+        cursor.close();
+
+        return timestamp;
+    }
+
+    /**
+     * Returns the totals of the local day of the given time, served from the daily rollup
+     *
+     * @param provider  : the provider of the data, e.g. {@link ActivityData#PROVIDER_MIBAND}
+     * @param timestamp : any time in seconds of the wanted day
+     */
+    public ActivityTotals getDayTotals(byte provider, int timestamp) {
+        int day = ActivityRollups.getStartOfDay(timestamp);
+
+        ArrayList<ActivityTotals> days = getRollupTotals(ActivityRollups.TABLE_DAILY, provider, day, day);
+        return days.isEmpty() ? new ActivityTotals(day) : days.get(0);
+    }
+
+    /**
+     * Returns one entry per stored local day between the two timestamps (inclusive), the day
+     * containing timestamp_from is included. Days without data are left out.
+     *
+     * @param timestamp_from : time in seconds from date
+     * @param timestamp_to   : time in seconds to date
+     */
+    public ArrayList<ActivityTotals> getDailyTotals(byte provider, int timestamp_from, int timestamp_to) {
+        int day = ActivityRollups.getStartOfDay(timestamp_from);
+        return getRollupTotals(ActivityRollups.TABLE_DAILY, provider, day, timestamp_to);
+    }
+
+    /**
+     * Returns one entry per stored local hour between the two timestamps (inclusive), the hour
+     * containing timestamp_from is included. Hours without data are left out.
+     *
+     * @param timestamp_from : time in seconds from date
+     * @param timestamp_to   : time in seconds to date
+     */
+    public ArrayList<ActivityTotals> getHourlyTotals(byte provider, int timestamp_from, int timestamp_to) {
+        int hour = ActivityRollups.getStartOfHour(timestamp_from);
+        return getRollupTotals(ActivityRollups.TABLE_HOURLY, provider, hour, timestamp_to);
+    }
+
+    /**
+     * Returns the summed totals of all local days between the two timestamps (inclusive)
+     */
+    public ActivityTotals getTotals(byte provider, int timestamp_from, int timestamp_to) {
+        ActivityTotals totals = new ActivityTotals(timestamp_from);
+        for (ActivityTotals day : getDailyTotals(provider, timestamp_from, timestamp_to)) {
+            totals.add(day);
+        }
+        return totals;
+    }
+
+    private ArrayList<ActivityTotals> getRollupTotals(String table, byte provider, int timestamp_from, int timestamp_to) {
+        SQLiteDatabase db = MasterSQLiteHelper.getInstance(context).getReadableDatabase();
+
+        ArrayList<ActivityTotals> totals = new ArrayList<ActivityTotals>();
+
+        Cursor cursor = db.rawQuery("SELECT timestamp, steps, active_minutes, deep_sleep_minutes, light_sleep_minutes FROM "
+                        + table + " WHERE provider=? AND timestamp>=? AND timestamp<=? ORDER BY timestamp",
+                new String[]{String.valueOf(provider), String.valueOf(timestamp_from), String.valueOf(timestamp_to)});
+
+        try {
+            while (cursor.moveToNext()) {
+                totals.add(new ActivityTotals(cursor.getInt(0), cursor.getInt(1), cursor.getInt(2), cursor.getInt(3), cursor.getInt(4)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return totals;
+    }
+
     /**
      * Returns all available activity samples from between the two timestamps (inclusive), of the given
      * provided and type(s).
@@ -135,19 +292,14 @@ public class ActivitySQLite {
             timestamp_to = Integer.MAX_VALUE;
         }
 
-        MasterSQLiteHelper helperDB = new MasterSQLiteHelper(context);
+        MasterSQLiteHelper helperDB = MasterSQLiteHelper.getInstance(context);
         SQLiteDatabase db = helperDB.getReadableDatabase();
 
         ArrayList<ActivityData> allActivities = new ArrayList<ActivityData>();
 
         //Log.i(TAG, "data from " + DateUtils.convertString(timestamp_from) + " to " + DateUtils.convertString(timestamp_to));
 
-        String query = "SELECT  * FROM " + TABLE_NAME + " WHERE (timestamp>=" + timestamp_from
-                + " AND timestamp<=" + timestamp_to
-                + getWhereClauseFor(activityTypes)
-                + ") ORDER BY timestamp";
-
-        Cursor cursor = db.rawQuery(query, null);
+        Cursor cursor = db.rawQuery(getRangeQueryFor(activityTypes), getRangeArgsFor(timestamp_from, timestamp_to, activityTypes));
 
         cursor.moveToFirst();
 
@@ -157,13 +309,12 @@ public class ActivitySQLite {
         }
 
         cursor.close();
-        db.close();
 
         return allActivities;
     }
 
     public ArrayList<ActivityData> getAllActivities() {
-        MasterSQLiteHelper helperDB = new MasterSQLiteHelper(context);
+        MasterSQLiteHelper helperDB = MasterSQLiteHelper.getInstance(context);
         SQLiteDatabase db = helperDB.getReadableDatabase();
 
         ArrayList<ActivityData> allActivities = new ArrayList<ActivityData>();
@@ -180,28 +331,171 @@ public class ActivitySQLite {
         }
 
         cursor.close();
-        db.close();
 
         return allActivities;
     }
 
+    public int visitSleepSamples(long timestamp_from, long timestamp_to, ActivityVisitor visitor) {
+        return visitActivitiesSample(timestamp_from, timestamp_to, ActivityKind.TYPE_SLEEP, visitor);
+    }
+
+    public int visitActivitySamples(long timestamp_from, long timestamp_to, ActivityVisitor visitor) {
+        return visitActivitiesSample(timestamp_from, timestamp_to, ActivityKind.TYPE_ACTIVITY, visitor);
+    }
+
+    public int visitAllActivitiesSamples(long timestamp_from, long timestamp_to, ActivityVisitor visitor) {
+        return visitActivitiesSample(timestamp_from, timestamp_to, ActivityKind.TYPE_ALL, visitor);
+    }
+
+    /**
+     * Streams all available activity samples from between the two timestamps (inclusive), of the given
+     * type(s) to the visitor, ordered by time. Rows are decoded one by one into a single reused
+     * {@link ActivityRecord}, so the whole range is never held in memory.
+     * Recent ranges are served from the {@link ActivityCache} without touching the database.
+     *
+     * @param timestamp_from : time in seconds from date
+     * @param timestamp_to   : time in seconds to date, -1 for no limit
+     * @param activityTypes  combination of #TYPE_DEEP_SLEEP, #TYPE_LIGHT_SLEEP, #TYPE_ACTIVITY
+     * @param visitor        receives every row, may stop early by returning false
+     * @return the number of visited rows
+     */
+    public int visitActivitiesSample(long timestamp_from, long timestamp_to, int activityTypes, ActivityVisitor visitor) {
+        if (timestamp_to == -1) {
+            timestamp_to = Integer.MAX_VALUE;
+        }
+
+        int visited = ActivityCache.getInstance(context).visit(timestamp_from, timestamp_to, activityTypes, visitor);
+        if (visited >= 0) {
+            return visited;
+        }
+
+        return visitStoredActivities(timestamp_from, timestamp_to, activityTypes, visitor);
+    }
+
+    /**
+     * Same as {@link #visitActivitiesSample(long, long, int, ActivityVisitor)}, but always reads the database
+     */
+    int visitStoredActivities(long timestamp_from, long timestamp_to, int activityTypes, ActivityVisitor visitor) {
+        SQLiteDatabase db = MasterSQLiteHelper.getInstance(context).getReadableDatabase();
+        Cursor cursor = db.rawQuery(getRangeQueryFor(activityTypes), getRangeArgsFor(timestamp_from, timestamp_to, activityTypes));
+
+        return visitCursor(cursor, visitor);
+    }
+
+    /**
+     * Streams all stored activities to the visitor, ordered by time
+     *
+     * @return the number of visited rows
+     */
+    public int visitAllActivities(ActivityVisitor visitor) {
+        SQLiteDatabase db = MasterSQLiteHelper.getInstance(context).getReadableDatabase();
+        Cursor cursor = db.rawQuery(getRangeQueryFor(ActivityKind.TYPE_ALL), getRangeArgsFor(0, Integer.MAX_VALUE, ActivityKind.TYPE_ALL));
+
+        return visitCursor(cursor, visitor);
+    }
+
+    private int visitCursor(Cursor cursor, ActivityVisitor visitor) {
+        ActivityRecord record = new ActivityRecord();
+        int visited = 0;
+
+        try {
+            while (cursor.moveToNext()) {
+                record.set(
+                        cursor.getInt(0),
+                        (byte) cursor.getInt(1),
+                        (byte) cursor.getInt(2),
+                        cursor.getInt(3),
+                        (byte) cursor.getInt(4));
+                visited++;
+
+                if (!visitor.visit(record)) {
+                    break;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return visited;
+    }
+
+    /**
+     * Returns the range query for the given activity types. The sql only depends on the types,
+     * so sqlite can reuse the compiled statement for every time range.
+     */
+    private String getRangeQueryFor(int activityTypes) {
+        activityTypes &= ActivityKind.TYPE_ALL;
+        synchronized (rangeQueries) {
+            if (rangeQueries[activityTypes] == null) {
+                rangeQueries[activityTypes] = "SELECT timestamp, provider, intensity, steps, type FROM " + TABLE_NAME
+                        + " WHERE timestamp>=? AND timestamp<=?"
+                        + getWhereClauseFor(activityTypes)
+                        + " ORDER BY timestamp";
+            }
+            return rangeQueries[activityTypes];
+        }
+    }
+
+    private String[] getRangeArgsFor(long timestamp_from, long timestamp_to, int activityTypes) {
+        byte[] dbActivityTypes = activityTypes == ActivityKind.TYPE_ALL ? new byte[0] : ActivityKind.mapToDBActivityTypes(activityTypes);
+
+        String[] args = new String[2 + dbActivityTypes.length];
+        args[0] = String.valueOf(timestamp_from);
+        args[1] = String.valueOf(timestamp_to);
+        for (int i = 0; i < dbActivityTypes.length; i++) {
+            args[2 + i] = String.valueOf(dbActivityTypes[i]);
+        }
+        return args;
+    }
+
     private String getWhereClauseFor(int activityTypes) {
         if (activityTypes == ActivityKind.TYPE_ALL) {
             return ""; // no further restriction
         }
 
-        StringBuilder builder = new StringBuilder(" AND (");
+        StringBuilder builder = new StringBuilder(" AND type IN (");
         byte[] dbActivityTypes = ActivityKind.mapToDBActivityTypes(activityTypes);
         for (int i = 0; i < dbActivityTypes.length; i++) {
-            builder.append(" type=").append(dbActivityTypes[i]);
+            builder.append('?');
             if (i + 1 < dbActivityTypes.length) {
-                builder.append(" OR ");
+                builder.append(',');
             }
         }
         builder.append(')');
         return builder.toString();
     }
 
+    /**
+     * Logs a warning if a type filtered range query can not use an index.
+     * Only runs when debug logging is enabled for this tag.
+     */
+    public void checkQueryPlans() {
+        if (!Log.isLoggable(TAG, Log.DEBUG)) {
+            return;
+        }
+
+        SQLiteDatabase db = MasterSQLiteHelper.getInstance(context).getReadableDatabase();
+        int[] checkedTypes = {ActivityKind.TYPE_SLEEP, ActivityKind.TYPE_ACTIVITY};
+
+        for (int activityTypes : checkedTypes) {
+            Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + getRangeQueryFor(activityTypes), getRangeArgsFor(0, Integer.MAX_VALUE, activityTypes));
+
+            cursor.moveToFirst();
+            while (!cursor.isAfterLast()) {
+                //the last column contains the human readable detail, e.g. "SEARCH TABLE Activities USING INDEX ..."
+                String detail = cursor.getString(3);
+                if (detail != null && detail.startsWith("SCAN") && !detail.contains("INDEX")) {
+                    Log.w(TAG, "range query for types " + activityTypes + " does a full scan: " + detail);
+                } else {
+                    Log.d(TAG, "range query for types " + activityTypes + ": " + detail);
+                }
+                cursor.moveToNext();
+            }
+
+            cursor.close();
+        }
+    }
+
     private ActivityData cursorToActivity(Cursor cursor) {
 
         int timestamp = cursor.getInt(0);
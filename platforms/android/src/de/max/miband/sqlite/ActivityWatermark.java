@@ -0,0 +1,66 @@
+package de.max.miband.sqlite;
+
+import android.content.Context;
+
+/**
+ * Keeps the timestamp of the newest committed activity per provider in memory,
+ * so the synchronization does not need to query the database for every block it acks.
+ * The values are loaded lazily from the {@link ActivitySQLite} once after each {@link #invalidate()}
+ * and moved forward by the {@link ActivityWriter} whenever a batch has been committed.
+ */
+public class ActivityWatermark {
+
+    private static final int PROVIDERS = 256;
+
+    private static ActivityWatermark instance;
+
+    private final Context context;
+    private final int[] timestamps = new int[PROVIDERS];
+    private final boolean[] loaded = new boolean[PROVIDERS];
+
+    public synchronized static ActivityWatermark getInstance(Context context) {
+        if (instance == null) {
+            instance = new ActivityWatermark(context);
+        }
+        return instance;
+    }
+
+    private ActivityWatermark(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Returns the timestamp of the newest committed activity
+     *
+     * @param provider : the provider of the data
+     * @return the timestamp in seconds, or 0 if there is no activity yet
+     */
+    public synchronized int get(byte provider) {
+        int index = provider & 0xff;
+        if (!loaded[index]) {
+            timestamps[index] = ActivitySQLite.getInstance(context).getMostRecentTimestamp(provider);
+            loaded[index] = true;
+        }
+        return timestamps[index];
+    }
+
+    /**
+     * Called once activities up to the given timestamp have been committed
+     */
+    public synchronized void update(byte provider, int timestamp) {
+        int index = provider & 0xff;
+        // not loaded yet, the next get() reads the committed value from the database
+        if (loaded[index] && timestamp > timestamps[index]) {
+            timestamps[index] = timestamp;
+        }
+    }
+
+    /**
+     * Forgets all values, they are loaded again on the next access (e.g. after a new connection)
+     */
+    public synchronized void invalidate() {
+        for (int i = 0; i < PROVIDERS; i++) {
+            loaded[i] = false;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package de.max.miband.sqlite;
+
+import android.content.Context;
+import android.util.Log;
+
+import de.max.miband.ActionCallback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes synchronized activity data to the {@link ActivitySQLite} on a background thread.
+ * Batches are queued in a bounded queue, so a slow disk throttles the producer instead
+ * of piling up memory. Every batch is reported through its {@link ActionCallback} once
+ * the transaction containing it has been committed (or has failed).
+ */
+public class ActivityWriter implements Runnable {
+
+    private static final String TAG = ActivityWriter.class.getSimpleName();
+
+    //number of pending batches before submit() starts blocking the producer
+    private static final int QUEUE_CAPACITY = 16;
+    //maximum number of batches written in one transaction
+    private static final int MAX_BATCHES_PER_TRANSACTION = 8;
+    //how long a producer waits for room in the queue before giving up
+    private static final long SUBMIT_TIMEOUT_SECONDS = 10;
+
+    public static final int ERROR_QUEUE_FULL = 334;
+    public static final int ERROR_WRITE_FAILED = 335;
+
+    /**
+     * A buffer of raw activity minutes (3 bytes each) starting at the given timestamp (in seconds).
+     */
+    static class Batch {
+        final int timestamp;
+        final byte provider;
+        final byte[] data;
+        final int offset;
+        final int length;
+        final ActionCallback callback;
+
+        Batch(int timestamp, byte provider, byte[] data, int offset, int length, ActionCallback callback) {
+            this.timestamp = timestamp;
+            this.provider = provider;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.callback = callback;
+        }
+
+        int getMinutes() {
+            return length / 3;
+        }
+    }
+
+    private static ActivityWriter instance;
+
+    private final Context context;
+    private final ArrayBlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(QUEUE_CAPACITY);
+
+    public synchronized static ActivityWriter getInstance(Context context) {
+        if (instance == null) {
+            instance = new ActivityWriter(context);
+        }
+        return instance;
+    }
+
+    private ActivityWriter(Context context) {
+        this.context = context;
+
+        Thread t = new Thread(this, TAG);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Queues a copy of the given activity buffer to be stored.
+     * Blocks while the queue is full.
+     *
+     * @param timestamp : time in seconds of the first minute in the buffer
+     * @param provider  : the provider of the data
+     * @param data      : the raw activity buffer, it is copied so the caller can reuse it
+     * @param length    : number of bytes to store, may be 0 to get notified once all previous batches are stored
+     * @param callback  : called from the writer thread once the data has been committed, may be null
+     */
+    public void submit(int timestamp, byte provider, byte[] data, int length, ActionCallback callback) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        Batch batch = new Batch(timestamp, provider, copy, 0, length, callback);
+
+        boolean queued;
+        try {
+            queued = queue.offer(batch, SUBMIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+
+        if (!queued) {
+            Log.e(TAG, "activity write queue is full, dropping " + batch.getMinutes() + " minute(s)");
+            if (callback != null) {
+                callback.onFail(ERROR_QUEUE_FULL, "Activity write queue is full");
+            }
+        }
+    }
+
+    public int getPendingBatches() {
+        return queue.size();
+    }
+
+    @Override
+    public void run() {
+        List<Batch> batches = new ArrayList<Batch>(MAX_BATCHES_PER_TRANSACTION);
+
+        while (true) {
+            try {
+                batches.add(queue.take());
+                queue.drainTo(batches, MAX_BATCHES_PER_TRANSACTION - 1);
+
+                int rows = ActivitySQLite.getInstance(context).saveActivities(batches);
+
+                if (rows >= 0) {
+                    ActivityWatermark watermark = ActivityWatermark.getInstance(context);
+                    ActivityCache cache = ActivityCache.getInstance(context);
+                    ActivityRangeIndex index = ActivityRangeIndex.getInstance(context);
+                    for (Batch batch : batches) {
+                        if (batch.getMinutes() > 0) {
+                            watermark.update(batch.provider, batch.timestamp + (batch.getMinutes() - 1) * 60);
+                            cache.append(batch);
+                            index.append(batch);
+                        }
+                    }
+                }
+
+                for (Batch batch : batches) {
+                    if (batch.callback == null) {
+                        continue;
+                    }
+                    try {
+                        if (rows >= 0) {
+                            batch.callback.onSuccess(batch.getMinutes());
+                        } else {
+                            batch.callback.onFail(ERROR_WRITE_FAILED, "Could not store activity data");
+                        }
+                    } catch (Exception e) {
+                        Log.e(TAG, "error in activity write callback", e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "activity writer interrupted");
+                return;
+            } finally {
+                batches.clear();
+            }
+        }
+    }
+}
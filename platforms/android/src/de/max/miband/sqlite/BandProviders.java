@@ -0,0 +1,54 @@
+package de.max.miband.sqlite;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import de.max.miband.MiBandConst;
+import de.max.miband.models.ActivityData;
+
+import java.util.Locale;
+
+/**
+ * Assigns each band its own provider, which keys its stored activities, rollups and watermark.
+ * The first band keeps {@link ActivityData#PROVIDER_MIBAND}, so the data stored before several bands
+ * were supported stays with it, and the {@link ActivityCache} and {@link ActivityRangeIndex} follow it.
+ * The providers are kept in the shared preferences and never reassigned.
+ */
+public class BandProviders {
+
+    private static final String KEY_NEXT = "_next";
+    private static final int MAX_PROVIDERS = 256;
+
+    private static BandProviders instance;
+
+    private final SharedPreferences prefs;
+
+    public synchronized static BandProviders getInstance(Context context) {
+        if (instance == null) {
+            instance = new BandProviders(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private BandProviders(Context context) {
+        this.prefs = context.getSharedPreferences(MiBandConst.PREF_MIBAND_PROVIDERS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the provider of the band, assigning the next free one to a new band
+     *
+     * @throws IllegalStateException if all providers have been assigned
+     */
+    public synchronized byte getProvider(String address) {
+        String key = address.toUpperCase(Locale.US);
+        int provider = prefs.getInt(key, -1);
+        if (provider < 0) {
+            provider = prefs.getInt(KEY_NEXT, ActivityData.PROVIDER_MIBAND);
+            if (provider >= MAX_PROVIDERS) {
+                throw new IllegalStateException("No provider left for band " + address);
+            }
+            prefs.edit().putInt(key, provider).putInt(KEY_NEXT, provider + 1).apply();
+        }
+        return (byte) provider;
+    }
+}
@@ -12,7 +12,7 @@ import de.max.miband.AppUtils;
 public class MasterSQLiteHelper extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "miband.db";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 4;
 
     /**
      * WITHOUT ROWID is only available with sqlite 3.8.2, which is available
@@ -36,20 +36,57 @@ public class MasterSQLiteHelper extends SQLiteOpenHelper {
             + "type INT, "
             + "PRIMARY KEY (timestamp, provider) ON CONFLICT REPLACE) " + getWithoutRowId();
 
+    //supports range queries filtered by type (e.g. sleep only)
+    public String CREATE_ACTIVITIES_TYPE_INDEX = "CREATE INDEX IF NOT EXISTS idx_activities_type_timestamp ON "
+            + ActivitySQLite.TABLE_NAME + " (type, timestamp)";
+
     public String DELETE_ACTIVITIES_DB = "DROP TABLE IF EXISTS " + ActivitySQLite.TABLE_NAME;
 
+    private static MasterSQLiteHelper instance;
+
+    /**
+     * Returns the process-wide helper. The database it opens is shared by all readers and writers,
+     * including the {@link ActivityWriter} thread, so it stays open for the life of the process.
+     */
+    public synchronized static MasterSQLiteHelper getInstance(Context context) {
+        if (instance == null) {
+            instance = new MasterSQLiteHelper(context.getApplicationContext());
+        }
+        return instance;
+    }
+
     public MasterSQLiteHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        //write-ahead logging lets readers query while a sync is writing
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(CREATE_ACTIVITIES_DB);
+        db.execSQL(CREATE_ACTIVITIES_TYPE_INDEX);
+        db.execSQL(ActivityRollups.CREATE_HOURLY_DB);
+        db.execSQL(ActivityRollups.CREATE_DAILY_DB);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(DELETE_ACTIVITIES_DB);
-        onCreate(db);
+        if (oldVersion < 2) {
+            db.execSQL(DELETE_ACTIVITIES_DB);
+            db.execSQL(ActivityRollups.DELETE_HOURLY_DB);
+            db.execSQL(ActivityRollups.DELETE_DAILY_DB);
+            onCreate(db);
+            return;
+        }
+
+        //keep the stored activities, only add what is missing
+        if (oldVersion < 3) {
+            db.execSQL(CREATE_ACTIVITIES_TYPE_INDEX);
+        }
+        if (oldVersion < 4) {
+            db.execSQL(ActivityRollups.CREATE_HOURLY_DB);
+            db.execSQL(ActivityRollups.CREATE_DAILY_DB);
+            ActivityRollups.rebuild(db);
+        }
     }
 }